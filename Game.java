@@ -12,25 +12,87 @@
  // 画像からそれぞれの横幅・縦幅を取得する
 
 import javax.swing.JFrame;
-import javax.swing.Timer;
 
 import java.awt.Image;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.ArrayList;
 import javax.swing.ImageIcon;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Timespan;
 import javax.swing.JPanel;
 import java.awt.Font;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Toolkit;
+import java.awt.Transparency;
+import java.awt.AlphaComposite;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferStrategy;
+import java.awt.image.VolatileImage;
 
 enum GameState {
     TITLE,
@@ -70,67 +132,256 @@ enum ImageKey {
     BOSS_BANG
 }
 
-// struct 星
-class Star {
-    private int x, y;
-    private int speed = 5;
-    private Color color;
-    private int interval = 4;
+// 全画面で共有する星空の背景
+// 星は速さ(1～10)ごとの層に分けて座標を配列で持ち、層ごとに星を描いた画像を用意しておく
+// 星は5tickに1回だけ動くので、動いた時に層の画像をずらして背景の画像にまとめ直し、
+// 毎フレームは背景の画像を1回転送するだけにする (星の数によらず描画の負荷は変わらない)
+class Starfield {
+    private static final int LAYER_COUNT = 10;
+    // 星が動く間隔 (tick)
+    private static final int INTERVAL = 5;
+    // 星の数 (-Dakari.stars=5000 などで変更可能)
+    private static final int STAR_COUNT = Integer.getInteger("akari.stars", 1000);
+
+    // 層ごとの星の座標 (層の番号+1が速さ)
+    private final int[][] starX = new int[LAYER_COUNT][];
+    private final int[][] starY = new int[LAYER_COUNT][];
+    // 層ごとの星の画像と縦のずれ
+    private final BufferedImage[] layers = new BufferedImage[LAYER_COUNT];
+    private final int[] offsets = new int[LAYER_COUNT];
+    // 全ての層をまとめた背景
+    private final BufferedImage background;
+    private final GraphicsConfiguration gc;
+    // 縮小して描く時の背景 (背景をまとめ直した後の最初の縮小描画で作り直す)
+    private BufferedImage scaledBackground;
+    private boolean scaledDirty = true;
+    private boolean dirty = true;
+    // 星を減らした表示 (速さが奇数の層だけ描く、QualityGovernorが切り替える)
+    private boolean reducedDetail = false;
+    private int interval = INTERVAL - 1;
+    // 星が動いた回数 (ダーティ矩形の全体の描き直しの判定用)
+    private long version = 0;
+
+    private static class Holder {
+        static final Starfield INSTANCE = new Starfield();
+    }
+
+    public static Starfield getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private Starfield() {
+        GraphicsConfiguration gc = null;
+        if (!GraphicsEnvironment.isHeadless()) {
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        // 星の速さは1～10で均等に選ぶ
+        int[] counts = new int[LAYER_COUNT];
+        int[] speeds = new int[STAR_COUNT];
+        for (int i = 0; i < STAR_COUNT; i++) {
+            speeds[i] = (int) (Math.random() * LAYER_COUNT);
+            counts[speeds[i]]++;
+        }
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            starX[layer] = new int[counts[layer]];
+            starY[layer] = new int[counts[layer]];
+            counts[layer] = 0;
+        }
+        for (int i = 0; i < STAR_COUNT; i++) {
+            int layer = speeds[i];
+            starX[layer][counts[layer]] = (int) (Math.random() * Constants.SCREEN_WIDTH);
+            starY[layer][counts[layer]] = (int) (Math.random() * Constants.SCREEN_HEIGHT);
+            counts[layer]++;
+        }
 
-    public Star(int startX, int startY, int speed) {
-        this.x = startX;
-        this.y = startY;
-        this.speed = speed;
-        // colorは灰色でspeedが速いほど白に近づく
-        this.color = new Color(200 - (10 - speed) * 10, 200 - (10 - speed) * 10, 200 - (10 - speed) * 10);
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            layers[layer] = createImage(gc, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT, Transparency.BITMASK);
+            Graphics2D g = layers[layer].createGraphics();
+            // colorは灰色でspeedが速いほど白に近づく
+            int speed = layer + 1;
+            int gray = 200 - (10 - speed) * 10;
+            g.setColor(new Color(gray, gray, gray));
+            for (int i = 0; i < starX[layer].length; i++) {
+                g.fillRect(starX[layer][i], starY[layer][i], 1, 1);
+            }
+            g.dispose();
+        }
+        background = createImage(gc, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT, Transparency.OPAQUE);
+        this.gc = gc;
     }
 
-    public void move() {
-        if (interval == 0) {
-            y += speed;
-            interval = 4;
-        } else {
+    private static BufferedImage createImage(GraphicsConfiguration gc, int width, int height, int transparency) {
+        if (gc == null) {
+            int type = transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+            return new BufferedImage(width, height, type);
+        }
+        return gc.createCompatibleImage(width, height, transparency);
+    }
+
+    // 1tick進める (どの画面でもゲームループから1回だけ呼ばれる)
+    // ダーティ矩形で描く時は動かさない (5tickごとに画面全体が変わり、そのたびに全体を描き直すことになるため)
+    public void update() {
+        if (Constants.DIRTY_RECTS) {
+            return;
+        }
+        if (interval > 0) {
             interval--;
+            return;
         }
-        if (y > Constants.SCREEN_HEIGHT) {
-            y = 0;
+        interval = INTERVAL - 1;
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            offsets[layer] = (offsets[layer] + layer + 1) % Constants.SCREEN_HEIGHT;
         }
+        dirty = true;
+        version++;
     }
 
-    // 描画処理などその他のメソッド
-    public int getX() {
-        return x;
+    // getVersion
+    public long getVersion() {
+        return version;
     }
 
-    public int getY() {
-        return y;
+    // 星を減らすかどうか (切り替えた時は背景をまとめ直し、ダーティ矩形も全体を描き直させる)
+    public void setReducedDetail(boolean reducedDetail) {
+        if (this.reducedDetail == reducedDetail) {
+            return;
+        }
+        this.reducedDetail = reducedDetail;
+        dirty = true;
+        version++;
     }
 
-    public Color getColor() {
-        return color;
+    // isReducedDetail
+    public boolean isReducedDetail() {
+        return reducedDetail;
     }
 
-    // getSpeed
-    public int getSpeed() {
-        return speed;
+    // 画面全体を星空で塗りつぶす (画面のクリアの代わり)
+    public void draw(Graphics g) {
+        if (dirty) {
+            compose();
+            dirty = false;
+        }
+        g.drawImage(background, 0, 0, null);
+    }
+
+    // ダーティ矩形で描く時の塗りつぶし (描き直す矩形の所だけ)
+    public void draw(Graphics g, DirtyRegion region) {
+        if (dirty) {
+            compose();
+            dirty = false;
+        }
+        for (int i = 0; i < region.getRectCount(); i++) {
+            int x = region.getRectX(i);
+            int y = region.getRectY(i);
+            int right = x + region.getRectWidth(i);
+            int bottom = y + region.getRectHeight(i);
+            g.drawImage(background, x, y, right, bottom, x, y, right, bottom, null);
+        }
+    }
+
+    // 縮小して描く時の塗りつぶし (縮小した背景を作っておき、毎フレームは等倍で転送する)
+    public void draw(Graphics g, float scale) {
+        if (dirty) {
+            compose();
+            dirty = false;
+        }
+        int width = Math.round(Constants.SCREEN_WIDTH * scale);
+        int height = Math.round(Constants.SCREEN_HEIGHT * scale);
+        if (scaledBackground == null || scaledBackground.getWidth() != width || scaledBackground.getHeight() != height) {
+            scaledBackground = createImage(gc, width, height, Transparency.OPAQUE);
+            scaledDirty = true;
+        }
+        if (scaledDirty) {
+            Graphics2D sg = scaledBackground.createGraphics();
+            sg.drawImage(background, 0, 0, width, height, null);
+            sg.dispose();
+            scaledDirty = false;
+        }
+        g.drawImage(scaledBackground, 0, 0, null);
+    }
+
+    // 層の画像をずらして背景にまとめる (画面の下端を越えた分は上に回す)
+    private void compose() {
+        Graphics2D g = background.createGraphics();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
+        int step = reducedDetail ? 2 : 1;
+        for (int layer = step - 1; layer < LAYER_COUNT; layer += step) {
+            int offset = offsets[layer];
+            g.drawImage(layers[layer], 0, offset, null);
+            if (offset > 0) {
+                g.drawImage(layers[layer], 0, offset - Constants.SCREEN_HEIGHT, null);
+            }
+        }
+        g.dispose();
+        scaledDirty = true;
+    }
+
+    // getStarCount
+    public int getStarCount() {
+        return STAR_COUNT;
     }
 }
 
 class Constants {
     public static final int SCREEN_WIDTH = 1024;
     public static final int SCREEN_HEIGHT = 768;
-    public static int missileFinalTime = (int) System.currentTimeMillis();
-    public static int missileInterval = 1000;
-    public static boolean missileStart = true;
-    public static boolean isGameOver = false;
-    public static boolean isGameClear = false;
-    public static int stage = 1;
-    public static ScoreManager scoreManager = new ScoreManager();
+    // 1秒あたりのシミュレーション回数 (-Dakari.tickRate=60 などで変更可能)
+    public static final int TICK_RATE = Integer.getInteger("akari.tickRate", 50);
+    // 描画の上限フレームレート (0 の場合はモニターのリフレッシュレート)
+    public static final int FRAME_RATE = Integer.getInteger("akari.frameRate", 0);
+    // スコアの登録に使うプレイヤー名 (筐体ごとに -Dakari.player=NAME で指定)
+    public static final String PLAYER_NAME = System.getProperty("akari.player", "PLAYER");
+    // 変わった所だけを描き直す描画 (-Dakari.dirtyRects=true、星空が動くと全体を描き直すことになるので、この時は星空を止める)
+    public static final boolean DIRTY_RECTS = Boolean.getBoolean("akari.dirtyRects");
+    // 描画の品質を固定する (-Dakari.quality=0～4、指定がなければフレーム時間に合わせて自動で切り替える)
+    public static final int QUALITY = Integer.getInteger("akari.quality", -1);
+    // 弾の移動にjdk.incubator.vectorを使わない (-Dakari.scalarProjectiles=true)
+    public static final boolean SCALAR_PROJECTILES = Boolean.getBoolean("akari.scalarProjectiles");
+    // 敵機・ミサイル・敵機のミサイルの合計がこの数以上の時は、移動・発射・当たり判定を並列に処理する
+    public static final int PARALLEL_THRESHOLD = Integer.getInteger("akari.parallelThreshold", 4096);
+    // tickごとの状態を直近何分か残すファイル (-Dakari.flightRecorder= で記録しない)
+    public static final String FLIGHT_RECORDER = System.getProperty("akari.flightRecorder", "flight.rec");
+    public static final int FLIGHT_RECORDER_MINUTES = Integer.getInteger("akari.flightRecorderMinutes", 10);
+    // 協力プレイのサーバー ("host:port"、-Dakari.connect=localhost:47800 などで接続する)
+    public static final String CONNECT = System.getProperty("akari.connect", "");
+    // 協力プレイの通信で真似る遅延 (片道のミリ秒) とゆらぎ (ミリ秒) とパケットロス (%)
+    public static final int NET_LATENCY = Integer.getInteger("akari.netLatency", 0);
+    public static final int NET_JITTER = Integer.getInteger("akari.netJitter", 0);
+    public static final int NET_LOSS = Integer.getInteger("akari.netLoss", 0);
+    // 1回のループで追いつく最大tick数
+    public static final int MAX_CATCH_UP_TICKS = 5;
+    // エンティティストアの容量 (ベンチマーク用に -Dakari.enemyCapacity=16384 などで変更可能)
+    public static final int ENEMY_CAPACITY = Integer.getInteger("akari.enemyCapacity", 4096);
+    public static final int MISSILE_CAPACITY = Integer.getInteger("akari.missileCapacity", 64);
+    public static final int ENEMY_MISSILE_CAPACITY = Integer.getInteger("akari.enemyMissileCapacity", 1024);
+    public static final int ITEM_CAPACITY = Integer.getInteger("akari.itemCapacity", 32);
+    // 移動速度
+    public static final int ENEMY_SPEED = 5;
+    public static final int MISSILE_SPEED = 10;
+    public static final int ENEMY_MISSILE_SPEED = 3;
+    public static final int ITEM_SPEED = 5;
 }
 
 public class Game extends JFrame {
-    private Timer timer;
-    public Screen screen;
+    private GameLoop gameLoop;
+    private RenderSurface renderSurface;
+    // 処理時間の計測 (F3でオーバーレイを表示)
+    private FrameProfiler profiler;
+    // 描画の品質の自動調整 (F3のオーバーレイに段階を表示)
+    private QualityGovernor quality;
+    // キー入力 (リスナーはこの1つだけ)
+    private final InputHandler input = new InputHandler();
+    // tickごとの状態の記録 (記録しない時はnull)
+    private TickRecorder tickRecorder;
+    // 起動してからのtick数
+    private long tickCount = 0;
+    public volatile Screen screen;
+    // 画面の切り替え
+    private ScreenManager screens;
+    // ハイスコアの管理
+    public ScoreManager scoreManager = ScoreManager.getInstance();
 
 
     public Game() {
@@ -142,849 +393,5169 @@ public class Game extends JFrame {
         setSize(Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);  // ウィンドウを画面中央に配置
+        // 描画はゲームループから能動的に行うので、OSからの再描画要求は無視する
+        setIgnoreRepaint(true);
+        // 画面はRenderSurfaceがウィンドウに直接描くので、コンポーネントとしては追加しない
+        getContentPane().setBackground(Color.BLACK);
 
-        screen = new TitleScreen(this);
-        // 背景は黒
-        screen.setBackground(Color.BLACK);
-        getContentPane().add(screen);
+        // ゲームループの設定
+        int frameRate = resolveFrameRate();
+        profiler = new FrameProfiler(1_000_000_000L / frameRate);
+        quality = new QualityGovernor(1_000_000_000L / frameRate, Constants.QUALITY);
+        addKeyListener(input);
+        screens = new ScreenManager(this);
+        screens.showTitle();
+        renderSurface = new RenderSurface(this, 1_000_000_000L / frameRate);
+        gameLoop = new GameLoop(this, Constants.TICK_RATE, frameRate, Constants.MAX_CATCH_UP_TICKS);
+        if (!Constants.FLIGHT_RECORDER.isEmpty()) {
+            tickRecorder = TickRecorder.open(new File(Constants.FLIGHT_RECORDER), Constants.FLIGHT_RECORDER_MINUTES);
+        }
+    }
 
+    // 描画のフレームレートを決める (指定がなければモニターのリフレッシュレート)
+    private static int resolveFrameRate() {
+        if (Constants.FRAME_RATE > 0) {
+            return Constants.FRAME_RATE;
+        }
+        if (!GraphicsEnvironment.isHeadless()) {
+            int refreshRate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return refreshRate;
+            }
+        }
+        return 60;
+    }
 
-        // ゲームループの設定
-        timer = new Timer(20, e -> gameLoop());
-        timer.start();
+    // ウィンドウの表示後にEDTから呼ぶ
+    public void start() {
+        renderSurface.init();
+        gameLoop.start();
+    }
+
+    // 1tick分のゲーム状態の更新 (ゲームループのスレッドから呼ばれる)
+    // tickEndNanosはこのtickが表す時間の終わり (これより前のキー入力をこのtickで使う)
+    void tick(long tickEndNanos) {
+        input.beginTick(tickEndNanos);
+        if (input.wasPressed(InputHandler.PROFILER)) {
+            profiler.toggleOverlay();
+        }
+        Starfield.getInstance().update();
+        screens.update();
+        Screen current = screen;
+        long start = System.nanoTime();
+        current.update();
+        if (tickRecorder != null) {
+            tickRecorder.record(tickCount, gameLoop.getLastFrameNanos(), System.nanoTime() - start, renderSurface.getLastRenderNanos(),
+                    current.getWorld(), input.getInputBits(), gameLoop.getDroppedTicks());
+        }
+        tickCount++;
+    }
+
+    // 描画 (alphaは直前のtickから次のtickまでの補間係数 0.0～1.0)
+    void renderFrame(float alpha) {
+        renderSurface.render(screen, alpha);
+    }
+
+    // getRenderSurface
+    public RenderSurface getRenderSurface() {
+        return renderSurface;
     }
 
-    private void gameLoop() {
-        // ゲーム状態の更新と画面の再描画
-        // StageScreenを表示している場合は、StageScreenのupdate()とrender()を呼び出す
-        screen.update();
-        screen.render();
+    // getProfiler
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+
+    // getQuality
+    public QualityGovernor getQuality() {
+        return quality;
+    }
+
+    // getInput
+    public InputHandler getInput() {
+        return input;
+    }
+
+    // getScreens
+    public ScreenManager getScreens() {
+        return screens;
     }
 
     public static void main(String[] args) {
         java.awt.EventQueue.invokeLater(() -> {
             Game ex = new Game();
             ex.setVisible(true);
+            ex.start();
         });
     }
 
-    // 画面の切り替え
-    public void setScreen(Screen screen) {
-        // 現在表示している画面を破棄
-        getContentPane().removeAll();
-
-        // 新しい画面を設定
-        getContentPane().add(screen);
-
+    // 画面の切り替え (ScreenManagerから呼ぶ、次のフレームから新しい画面を描く)
+    void setScreen(Screen screen) {
         // 新しい画面の初期化処理
         screen.init();
-
-        // 画面の再描画
-        repaint();
+        this.screen = screen;
     }
 
 }
 
-abstract class Screen extends JPanel {
-    protected Game game;
-    // 星を100個生成
-    protected List<Star> stars = new ArrayList<>();
-    {
-        for (int i = 0; i < 50; i++) {
-            int x = (int) (Math.random() * Constants.SCREEN_WIDTH);
-            int y = (int) (Math.random() * Constants.SCREEN_HEIGHT);
-            int speed = (int) (Math.random() * 10) + 1;
-            stars.add(new Star(x, y, speed));
-        }
-    }
-
-    public Screen(Game game) {
+// 画面の管理
+// タイトル画面とハイスコア画面は1つずつ作って使い回し、ステージ画面の中身はタイトル画面などの表示中に別スレッドで用意しておく
+// 切り替えはゲームループのスレッドで表示する画面の参照を差し替えるだけなので、次のフレームから新しい画面になる
+class ScreenManager {
+    private final Game game;
+    private final TitleScreen title;
+    private final HighScoreScreen highScores;
+    // 次のゲームのステージ画面の中身 (用意中のものも含む)
+    private CompletableFuture<StageSetup> nextStage;
+    // New Gameが選ばれて、用意が終わるのを待っているか
+    private boolean starting;
+
+    public ScreenManager(Game game) {
         this.game = game;
+        title = new TitleScreen(game);
+        highScores = new HighScoreScreen(game);
     }
 
-    public abstract void update(); // 画面の更新
-    public abstract void render(); // 画面の描画
+    // タイトル画面へ
+    public void showTitle() {
+        starting = false;
+        prepareStage();
+        game.setScreen(title);
+    }
 
-    public void init() {
-        // 画面の初期化処理
+    // ハイスコア画面へ
+    public void showHighScores() {
+        starting = false;
+        prepareStage();
+        game.setScreen(highScores);
     }
-}
-class TitleScreen extends Screen {
-    private InputHandler inputHandler;
-    private int arrow = 0;
-    private boolean isArrowPressed = false;
 
-    public TitleScreen(Game game) {
-        super(game);
-        Constants.isGameOver = false;
-        Constants.isGameClear = false;
-        Constants.scoreManager = new ScoreManager();
-        inputHandler = new InputHandler();
-        game.addKeyListener(inputHandler);
+    // 用意しておいたステージ画面でゲームを始める
+    // 用意が終わっていなければ待たずにタイトル画面のままにして、終わったtickのupdate()で切り替える
+    public void startGame() {
+        prepareStage();
+        starting = true;
+        update();
     }
+
+    // 毎tick、画面の更新の前にゲームループのスレッドから呼ぶ
+    // 用意に失敗した時 (stages/がないなど) はタイトル画面のままにして、次に始める時に用意し直す
     public void update() {
-        Constants.isGameOver = false;
-        Constants.isGameClear = false;
-        // タイトル画面の更新処理
-        // 右矢印キーを押したらarrowを1増やす
-        if (inputHandler.isRightPressed()) {
-            arrow++;
-            if (arrow > 1) {
-                arrow = 1;
-            }
-            this.isArrowPressed = true;
+        if (!starting || !nextStage.isDone()) {
+            return;
         }
-        // 左矢印キーを押したらarrowを1減らす
-        else if (inputHandler.isLeftPressed()) {
-            arrow--;
-            if (arrow < 0) {
-                arrow = 0;
-            }
-            this.isArrowPressed = true;
+        starting = false;
+        StageSetup setup;
+        try {
+            setup = nextStage.join();
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            nextStage = null;
         }
+        game.setScreen(new StageScreen(game, setup));
+    }
 
-        else {
-            this.isArrowPressed = false;
+    private void prepareStage() {
+        if (nextStage == null) {
+            nextStage = CompletableFuture.supplyAsync(StageSetup::create);
         }
+    }
+}
 
-        // 星を移動
-        stars.forEach(Star::move);
+// 固定タイムステップのゲームループ
+// シミュレーションは一定間隔のtickで進め、描画はtick間を補間してフレームレートで行う
+class GameLoop implements Runnable {
+    private final Game game;
+    private final long tickNanos;
+    private final long frameNanos;
+    private final int maxCatchUpTicks;
+    private volatile boolean running = false;
+    private Thread thread;
+    // 追いつけずに捨てたtick数
+    private long droppedTicks = 0;
+    // 直前のフレームのtickと描画にかかった時間
+    private long lastFrameNanos = 0;
+
+    public GameLoop(Game game, int tickRate, int frameRate, int maxCatchUpTicks) {
+        this.game = game;
+        this.tickNanos = 1_000_000_000L / tickRate;
+        this.frameNanos = 1_000_000_000L / frameRate;
+        this.maxCatchUpTicks = maxCatchUpTicks;
+    }
 
-        if (inputHandler.isFirePressed() && !this.isArrowPressed) {
-            if (arrow == 0) {
-                // New Gameを選択したらステージ画面へ
-                game.screen = new StageScreen(game);
-                game.setScreen(game.screen);
-                game.screen.setBackground(Color.BLACK);
-                game.getContentPane().add(game.screen);
-                // thisを破棄
-                game.remove(this);
-            } else if (arrow == 1) {
-                // Score Rankingを選択したらハイスコア画面へ
-                game.screen = new HighScoreScreen(game);
-                game.setScreen(game.screen);
-                game.screen.setBackground(Color.BLACK);
-                game.getContentPane().add(game.screen);
-                // thisを破棄
-                game.remove(this);
-            }
-            this.isArrowPressed = true;
+    public void start() {
+        if (running) {
+            return;
         }
-    }
-    public void render() {
-        // タイトル画面の描画処理
-        paint(game.getGraphics());
+        running = true;
+        thread = new Thread(this, "GameLoop");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    // paint
-    public void paint(Graphics g) {
-        // 画面を黒で塗りつぶす
-        g.fillRect(0, 0, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
+    public void stop() {
+        running = false;
+    }
 
-        // 星の描画
-        stars.forEach(star -> {
-            g.setColor(star.getColor());
-            g.fillRect(star.getX(), star.getY(), 1, 1);
-        });
+    @Override
+    public void run() {
+        FrameProfiler profiler = game.getProfiler();
+        QualityGovernor quality = game.getQuality();
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        long nextFrame = previous;
+        while (running) {
+            profiler.beginFrame();
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+
+            // 溜まった時間の分だけtickを進める (上限あり)
+            int ticks = 0;
+            while (accumulator >= tickNanos && ticks < maxCatchUpTicks) {
+                long start = profiler.begin();
+                game.tick(now - accumulator + tickNanos);
+                profiler.end(FrameProfiler.UPDATE, start);
+                accumulator -= tickNanos;
+                ticks++;
+            }
+            // 上限を超えた遅れは捨てて、ゲームの速度が暴走しないようにする
+            if (accumulator >= tickNanos) {
+                droppedTicks += accumulator / tickNanos;
+                accumulator %= tickNanos;
+            }
 
-        // 白文字で「New Game」と「Score Ranking」を表示
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(30f));
-        g.drawString("New Game", 400, 300);
-        g.drawString("Score Ranking", 400, 400);
-        // 右矢印で選択中の項目を表示
-        if (arrow == 0) {
-            g.drawString(">", 350, 300);
-        } else if (arrow == 1) {
-            g.drawString(">", 350, 400);
+            long start = profiler.begin();
+            game.renderFrame((float) accumulator / tickNanos);
+            profiler.end(FrameProfiler.RENDER, start);
+            profiler.endFrame(droppedTicks);
+            lastFrameNanos = System.nanoTime() - now;
+            quality.frameFinished(lastFrameNanos, droppedTicks);
+
+            // 次のフレームまで待機
+            nextFrame += frameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else {
+                nextFrame = System.nanoTime();
+            }
         }
+    }
 
-        // タイトルを白文字で表示
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(50f));
-        g.drawString("Akari Shooting Game", 200, 200);
+    // getDroppedTicks
+    public long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    // getLastFrameNanos
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
     }
 }
-class StageScreen extends Screen {
-    Player player;
-    List<Enemy> enemies = new ArrayList<>();
-    List<Missile> missiles = new ArrayList<>();
-    List<Item> items = new ArrayList<>();
-    Boss boss;
-    ImageLoader imageLoader;
-    InputHandler inputHandler;
-    List<EnemyMissile> enemyMissiles = new ArrayList<>();
-    int time;
-    int displayStage = 50;
-    int displayGameOver = 50;
-    int displayGameClear = 50;
 
-    public StageScreen(Game game) {
-        super(game);
-        imageLoader = new ImageLoader();
-        inputHandler = new InputHandler();
-        player = new Player(Constants.SCREEN_WIDTH / 2, Constants.SCREEN_HEIGHT - imageLoader.getImageHeight(ImageKey.PLAYER) - 10);
-        player.setWidth(imageLoader.getImageWidth(ImageKey.PLAYER));
-        player.setHeight(imageLoader.getImageHeight(ImageKey.PLAYER));
-        game.addKeyListener(inputHandler);
-
-        // 敵機の初期化
-        switch (Constants.stage) {
-            case 1:
-            for (int i = 0; i < 6; i++) {
-                for (int j = 0; j < 2; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY1;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY2;
-                    }
-                    Enemy enemy = new Enemy(100 + i * 100, 100 + j * 100, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
-                }
-            }
-            break;
-            case 2:
-            for (int i = 0; i < 7; i++) {
-                for (int j = 0; j < 2; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY3;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY4;
-                    }
-                    Enemy enemy = new Enemy(100 + i * 100, 100 + j * 100, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
-                }
-            }
-            break;
-            case 3:
-            for (int i = 0; i < 7; i++) {
-                for (int j = 0; j < 3; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY5;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY6;
-                    } else if (j == 2) {
-                        key = ImageKey.ENEMY7;
-                    }
-                    Enemy enemy = new Enemy(100 + i * 100, 100 + j * 100, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
-                }
-            }
-            break;
-            case 4:
-            for (int i = 0; i < 8; i++) {
-                for (int j = 0; j < 3; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY8;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY9;
-                    } else if (j == 2) {
-                        key = ImageKey.ENEMY10;
-                    }
-                    Enemy enemy = new Enemy(90 + i * 90, 90 + j * 90, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
-                }
-            }
-            break;
-            case 5:
-            for (int i = 0; i < 8; i++) {
-                for (int j = 0; j < 4; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY11;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY8;
-                    } else if (j == 2) {
-                        key = ImageKey.ENEMY9;
-                    } else if (j == 3) {
-                        key = ImageKey.ENEMY10;
-                    }
-                    Enemy enemy = new Enemy(90 + i * 90, 90 + j * 90, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
-                }
-            }
-            break;
-            case 6:
-            for (int i = 0; i < 8; i++) {
-                for (int j = 0; j < 5; j++) {
-                    ImageKey key = null;
-                    if (j == 0) {
-                        key = ImageKey.ENEMY11;
-                    } else if (j == 1) {
-                        key = ImageKey.ENEMY8;
-                    } else if (j == 2) {
-                        key = ImageKey.ENEMY9;
-                    } else if (j == 3) {
-                        key = ImageKey.ENEMY10;
-                    } else if (j == 4) {
-                        key = ImageKey.ENEMY11;
-                    }
-                    Enemy enemy = new Enemy(90 + i * 90, 90 + j * 90, key);
-                    enemy.setWidth(imageLoader.getImageWidth(key));
-                    enemy.setHeight(imageLoader.getImageHeight(key));
-                    enemies.add(enemy);
+// アクティブレンダリングの描画先
+// ウィンドウのBufferStrategyに描画して1フレームに1回だけ表示する
+// BufferStrategyが作れない環境ではVolatileImageのバックバッファに描いてから転送する
+class RenderSurface {
+    private final Game game;
+    // 1フレームの描画にかけてよい時間
+    private final long frameBudgetNanos;
+    private BufferStrategy bufferStrategy;
+    private VolatileImage backBuffer;
+    // ダーティ矩形で描く時の、前のフレームの内容が残るバッファ
+    private BufferedImage persistentBuffer;
+    // 品質を下げた時に、小さい解像度でプレイ画面を描くバッファと縮小した画像
+    private BufferedImage scaledBuffer;
+    private SpriteScaler spriteScaler;
+    // 描画時間の計測結果
+    private long lastRenderNanos = 0;
+    private long maxRenderNanos = 0;
+    private long overBudgetFrames = 0;
+    private long frames = 0;
+
+    public RenderSurface(Game game, long frameBudgetNanos) {
+        this.game = game;
+        this.frameBudgetNanos = frameBudgetNanos;
+    }
+
+    // ウィンドウが表示されてから呼ぶ
+    public void init() {
+        try {
+            game.createBufferStrategy(2);
+            bufferStrategy = game.getBufferStrategy();
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // VolatileImageのバックバッファで描画する
+            bufferStrategy = null;
+        }
+    }
+
+    // 画面を1フレーム描画して表示する
+    public void render(Screen screen, float alpha) {
+        long start = System.nanoTime();
+        if (bufferStrategy != null) {
+            renderWithBufferStrategy(screen, alpha);
+        } else {
+            renderWithVolatileImage(screen, alpha);
+        }
+        // Linuxなどでは描画コマンドを即座に反映させる
+        Toolkit.getDefaultToolkit().sync();
+
+        lastRenderNanos = System.nanoTime() - start;
+        if (lastRenderNanos > maxRenderNanos) {
+            maxRenderNanos = lastRenderNanos;
+        }
+        if (lastRenderNanos > frameBudgetNanos) {
+            overBudgetFrames++;
+        }
+        frames++;
+    }
+
+    private void renderWithBufferStrategy(Screen screen, float alpha) {
+        // バッファの内容が失われた場合は描き直す
+        do {
+            do {
+                Graphics2D g = (Graphics2D) bufferStrategy.getDrawGraphics();
+                try {
+                    paint(g, screen, alpha);
+                } finally {
+                    g.dispose();
                 }
-            }
+            } while (bufferStrategy.contentsRestored());
+            bufferStrategy.show();
+        } while (bufferStrategy.contentsLost());
+    }
+
+    // 画面とプロファイラーのオーバーレイを描く
+    private void paint(Graphics2D g, Screen screen, float alpha) {
+        FrameProfiler profiler = game.getProfiler();
+        QualityGovernor quality = game.getQuality();
+        long start = profiler.begin();
+        float scale = quality.getRenderScale();
+        if (scale < 1f && screen.supportsScaledRendering()) {
+            paintScaled(g, screen, alpha, scale);
+        } else if (Constants.DIRTY_RECTS && screen.supportsDirtyRegions()) {
+            paintDirty(g, screen, alpha);
+        } else {
+            screen.render(g, alpha);
         }
+        profiler.end(FrameProfiler.PAINT, start);
+        if (profiler.isOverlayVisible()) {
+            profiler.drawOverlay(g, quality);
+        }
+    }
 
-        // ボス機の初期化
-        // boss = new Boss(Constants.SCREEN_WIDTH / 2, 100);
+    // 小さいバッファに縮小して描き、画面全体に拡大して転送する (最後の拡大だけが拡大縮小の転送になる)
+    private void paintScaled(Graphics2D g, Screen screen, float alpha, float scale) {
+        int width = Math.round(Constants.SCREEN_WIDTH * scale);
+        int height = Math.round(Constants.SCREEN_HEIGHT * scale);
+        if (scaledBuffer == null || scaledBuffer.getWidth() != width || scaledBuffer.getHeight() != height) {
+            scaledBuffer = g.getDeviceConfiguration().createCompatibleImage(width, height, Transparency.OPAQUE);
+        }
+        if (spriteScaler == null || spriteScaler.getScale() != scale) {
+            spriteScaler = new SpriteScaler(scale, g.getDeviceConfiguration());
+        }
+        Graphics2D sg = scaledBuffer.createGraphics();
+        screen.setSpriteScaler(spriteScaler);
+        try {
+            screen.render(sg, alpha);
+        } finally {
+            screen.setSpriteScaler(null);
+            sg.dispose();
+        }
+        g.drawImage(scaledBuffer, 0, 0, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT, null);
+        // ダーティ矩形のバッファはこの間更新されないので、元の解像度に戻った時は全体を描き直す
+        DirtyRegion dirtyRegion = screen.getDirtyRegion();
+        if (dirtyRegion != null) {
+            dirtyRegion.invalidate();
+        }
+    }
 
-        // アイテムの初期化
-        // Item item = new Item(100, 100, ItemType.SCORE_UP);
-        
-        // time is now millisecobd
-        time = (int) System.currentTimeMillis();
+    // 変わった所だけを保持しているバッファに描き直し、バッファ全体を転送する
+    private void paintDirty(Graphics2D g, Screen screen, float alpha) {
+        if (persistentBuffer == null) {
+            persistentBuffer = g.getDeviceConfiguration().createCompatibleImage(Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT, Transparency.OPAQUE);
+        }
+        // 画面ごとに記録を持つので、画面が切り替わった最初のフレームは全体を描き直す
+        Graphics2D pg = persistentBuffer.createGraphics();
+        try {
+            screen.renderDirty(pg, alpha);
+        } finally {
+            pg.dispose();
+        }
+        g.drawImage(persistentBuffer, 0, 0, null);
     }
-    public void update() {
-        if (displayStage > 0) {
-            displayStage--;
+
+    private void renderWithVolatileImage(Screen screen, float alpha) {
+        GraphicsConfiguration gc = game.getGraphicsConfiguration();
+        if (gc == null) {
             return;
         }
-        if (Constants.isGameOver) {
-            if (displayGameOver > 0) {
-                displayGameOver--;
+        do {
+            // 画面の構成が変わった場合はバックバッファを作り直す
+            if (backBuffer == null || backBuffer.validate(gc) == VolatileImage.IMAGE_INCOMPATIBLE) {
+                backBuffer = gc.createCompatibleVolatileImage(Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
+            }
+            Graphics2D g = backBuffer.createGraphics();
+            try {
+                paint(g, screen, alpha);
+            } finally {
+                g.dispose();
+            }
+            Graphics target = game.getGraphics();
+            if (target == null) {
                 return;
             }
-            // spaceを押したらタイトル画面へ
-            if (inputHandler.isFirePressed()) {
-                game.screen = new TitleScreen(game);
-                game.setScreen(game.screen);
-                game.screen.setBackground(Color.BLACK);
-                game.getContentPane().add(game.screen);
-                // thisを破棄
-                game.remove(this);
+            try {
+                target.drawImage(backBuffer, 0, 0, null);
+            } finally {
+                target.dispose();
             }
+        } while (backBuffer.contentsLost());
+    }
+
+    // getLastRenderNanos
+    public long getLastRenderNanos() {
+        return lastRenderNanos;
+    }
+
+    // getMaxRenderNanos
+    public long getMaxRenderNanos() {
+        return maxRenderNanos;
+    }
+
+    // getOverBudgetFrames
+    public long getOverBudgetFrames() {
+        return overBudgetFrames;
+    }
+
+    // getFrames
+    public long getFrames() {
+        return frames;
+    }
+}
+
+// 描画の品質の自動調整
+// 直近のフレーム時間 (tickと描画にかかった時間) が予算に近づいたら品質を1段下げ、余裕のある状態が続いたら1段上げる
+// 上げるには下げるよりも長く余裕が続く必要があり、上げた直後にまた下げた時は次に上げるまでの待ちを倍にして、上げ下げを繰り返さないようにする
+// 解像度を下げても速くならなかった時は (ソフトウェア描画で拡大の転送が重い場合など) 元に戻し、それ以上は下げない
+// -Dakari.quality=N で段階を固定できる (ゲームループのスレッドだけから使う)
+class QualityGovernor {
+    // 0: 最高品質  1: 星を減らす  2: 敵機とボス機の爆発を描かない  3: 3/4の解像度で描いて拡大  4: 1/2の解像度で描いて拡大
+    public static final int MAX_LEVEL = 4;
+    private static final float[] RENDER_SCALES = {1f, 1f, 1f, 0.75f, 0.5f};
+    // 1回の判定に使うフレーム数
+    private static final int WINDOW_FRAMES = 30;
+    // 平均が予算のこの割合を超えたら下げる (%)
+    private static final int STEP_DOWN_PERCENT = 90;
+    // 平均が予算のこの割合を下回る判定が続いたら上げる (%)
+    private static final int STEP_UP_PERCENT = 50;
+    private static final int STEP_UP_WINDOWS = 4;
+    private static final int MAX_STEP_UP_WINDOWS = 64;
+
+    private final long frameBudgetNanos;
+    private final boolean locked;
+    private int level;
+    // 下げてよい最低の段階 (解像度を下げても速くならなかった時に狭める)
+    private int maxLevel = MAX_LEVEL;
+    // 解像度を下げる直前の平均フレーム時間 (下げた後の判定で比べる、-1は比べない)
+    private long averageBeforeScaling = -1;
+    // 判定中のフレームの合計時間とフレーム数
+    private long windowNanos = 0;
+    private int windowFrames = 0;
+    // 直前の判定の時点で捨てたtick数
+    private long droppedTicks = 0;
+    // 余裕のある判定が続いた回数と、上げるのに必要な回数
+    private int calmWindows = 0;
+    private int stepUpWindows = STEP_UP_WINDOWS;
+    // 直前の判定で上げたか
+    private boolean steppedUp = false;
+    // 直前の判定の平均フレーム時間
+    private long averageNanos = 0;
+
+    public QualityGovernor(long frameBudgetNanos, int lockedLevel) {
+        this.frameBudgetNanos = frameBudgetNanos;
+        this.locked = lockedLevel >= 0;
+        this.level = Math.min(Math.max(lockedLevel, 0), MAX_LEVEL);
+        apply();
+    }
+
+    // 1フレームの処理が終わったら呼ぶ (droppedTicksは追いつけずに捨てたtick数の累計)
+    public void frameFinished(long busyNanos, long droppedTicks) {
+        windowNanos += busyNanos;
+        windowFrames++;
+        if (windowFrames < WINDOW_FRAMES) {
+            return;
+        }
+        averageNanos = windowNanos / windowFrames;
+        boolean dropped = droppedTicks > this.droppedTicks;
+        this.droppedTicks = droppedTicks;
+        windowNanos = 0;
+        windowFrames = 0;
+        if (locked) {
+            return;
         }
-        if (Constants.isGameClear) {
-            if (displayGameClear > 0) {
-                displayGameClear--;
+
+        if (averageBeforeScaling >= 0) {
+            long before = averageBeforeScaling;
+            averageBeforeScaling = -1;
+            if (averageNanos >= before) {
+                level--;
+                maxLevel = level;
+                calmWindows = 0;
+                apply();
                 return;
             }
-            // spaceを押したらタイトル画面へ
-            if (inputHandler.isFirePressed()) {
-                game.screen = new TitleScreen(game);
-                game.setScreen(game.screen);
-                game.screen.setBackground(Color.BLACK);
-                game.getContentPane().add(game.screen);
-                // thisを破棄
-                game.remove(this);
-            }
         }
-        // ゲームの状態を更新
-        if (player.isAlive()) {
-            if (inputHandler.isLeftPressed()) {
-                if (player.getX() > 0) {
-                    player.moveLeft();
+        boolean wasSteppedUp = steppedUp;
+        steppedUp = false;
+        if (dropped || averageNanos * 100 > frameBudgetNanos * STEP_DOWN_PERCENT) {
+            calmWindows = 0;
+            if (level < maxLevel) {
+                // 上げた直後に下げることになったら、次に上げるまでの待ちを長くする
+                if (wasSteppedUp) {
+                    stepUpWindows = Math.min(stepUpWindows * 2, MAX_STEP_UP_WINDOWS);
                 }
-            }
-            if (inputHandler.isRightPressed()) {
-                if (player.getX() < Constants.SCREEN_WIDTH - player.getWidth()) {
-                    player.moveRight();
+                if (RENDER_SCALES[level + 1] < RENDER_SCALES[level]) {
+                    averageBeforeScaling = averageNanos;
                 }
+                level++;
+                apply();
             }
-            if (inputHandler.isFirePressed()) {
-                if (Constants.missileStart || Math.abs(Constants.missileFinalTime - (int) System.currentTimeMillis()) > Constants.missileInterval) {
-                    Missile missile = new Missile(player.getX() + player.getWidth() / 2, player.getY());
-                    missile.setWidth(imageLoader.getImageWidth(ImageKey.PLAYER_MISSILE));
-                    missile.setHeight(imageLoader.getImageHeight(ImageKey.PLAYER_MISSILE));
-                    missiles.add(missile);
-                    Constants.missileFinalTime = (int) System.currentTimeMillis();
-                    Constants.missileStart = false;
-                }
+        } else if (averageNanos * 100 < frameBudgetNanos * STEP_UP_PERCENT) {
+            calmWindows++;
+            if (calmWindows >= stepUpWindows && level > 0) {
+                calmWindows = 0;
+                level--;
+                steppedUp = true;
+                apply();
             }
+        } else {
+            calmWindows = 0;
         }
+    }
 
-        // アイテムをランダムに生成
-        if (Math.random() < 0.004) {
-            int x = (int) (Math.random() * Constants.SCREEN_WIDTH);
-            int type = (int) (Math.random() * 4);
-            ImageKey key = null;
-            ItemType itemType = null;
-            switch(type) {
-                case 0:
-                    itemType = ItemType.SCORE_UP;
-                    key = ImageKey.ITEM1;
-                    break;
-                case 1:
-                    itemType = ItemType.LIFE_UP;
-                    key = ImageKey.ITEM2;
-                    break;
-                case 2:
-                    itemType = ItemType.SPEED_UP;
-                    key = ImageKey.ITEM3;
-                    break;
-                case 3:
-                    itemType = ItemType.MISSILE_UPGRADE;
-                    key = ImageKey.ITEM4;
-                    break;
-            }
-            int y = -imageLoader.getImageHeight(key);
-            items.add(new Item(x, y, itemType));
-        }
+    // 段階に合わせて星の数を切り替える (爆発と解像度は描画時に見る)
+    private void apply() {
+        Starfield.getInstance().setReducedDetail(level >= 1);
+    }
 
-        // アイテムを上から下に移動
-        items.forEach(item -> item.setY(item.getY() + item.getSpeed()));
+    // getLevel
+    public int getLevel() {
+        return level;
+    }
 
-        // 画面外に出たミサイルを削除
-        missiles.removeIf(missile -> !missile.isVisible());
+    // isLocked
+    public boolean isLocked() {
+        return locked;
+    }
 
-        // ミサイルの移動
-        missiles.forEach(Missile::move);
+    // 敵機とボス機の爆発を描くか (自機の爆発は常に描く)
+    public boolean isExplosionsVisible() {
+        return level < 2;
+    }
 
-        // 敵機の移動
-        // このメソッド内で敵機の動きのロジックを実装、enemy.moveは使わない
-        enemies.forEach(enemy -> {
-            // 左端と右端に到達したら下に移動、左右の移動方向を反転
-            if (enemy.getBang() > 0) {
-                return;
-            }
-            if (enemy.getX() < 0 || enemy.getX() > Constants.SCREEN_WIDTH - enemy.getWidth()) {
-                enemy.setY(enemy.getY() + 20);
-                enemy.setSpeed(-enemy.getSpeed());
-            }
-            enemy.setX(enemy.getX() + enemy.getSpeed());
-        });
+    // プレイ画面を描く解像度の倍率
+    public float getRenderScale() {
+        return RENDER_SCALES[level];
+    }
 
-        // 敵機のミサイルの発射
-        // このメソッド内で敵機のミサイルの発射のロジックを実装
-        enemies.forEach(enemy -> {
-            if (!enemy.isAlive() || enemy.getBang() > 0) {
-                return;
-            }
-            double percentange = 0.004;
-            switch (Constants.stage) {
-                case 1:
-                    percentange = 0.003;
-                    break;
-                case 2:
-                    percentange = 0.0035;
-                    break;
-                case 3:
-                    percentange = 0.0040;
-                    break;
-                case 4:
-                    percentange = 0.0045;
+    // デバッグ表示用の1行
+    public String describe() {
+        return String.format(Locale.ROOT, "quality %d/%d %s  avg %.2f ms  stars %s  explosions %s  scale %d%%",
+                level, maxLevel, locked ? "locked" : "auto", averageNanos / 1e6,
+                level >= 1 ? "half" : "full", isExplosionsVisible() ? "on" : "off", Math.round(getRenderScale() * 100));
+    }
+}
+
+// 品質を下げた時の縮小した描画
+// Graphics2Dの変換で縮めるとスプライトの転送が数倍遅くなるので、画像は倍率ごとに縮小したものを作っておき、
+// 座標だけを縮めて等倍で転送する (ゲームループのスレッドだけから使う)
+class SpriteScaler {
+    private final float scale;
+    private final GraphicsConfiguration gc;
+    // 元の画像ごとの縮小した画像 (初めて描く時に作る)
+    private final Map<Image, Image> images = new IdentityHashMap<>();
+
+    public SpriteScaler(float scale, GraphicsConfiguration gc) {
+        this.scale = scale;
+        this.gc = gc;
+    }
+
+    // getScale
+    public float getScale() {
+        return scale;
+    }
+
+    // 座標・大きさを縮める
+    public int scale(int value) {
+        return Math.round(value * scale);
+    }
+
+    // 縮小した画像
+    public Image getImage(Image image) {
+        Image scaled = images.get(image);
+        if (scaled == null) {
+            scaled = createScaledImage(image);
+            images.put(image, scaled);
+        }
+        return scaled;
+    }
+
+    private Image createScaledImage(Image image) {
+        int width = Math.max(1, scale(image.getWidth(null)));
+        int height = Math.max(1, scale(image.getHeight(null)));
+        BufferedImage scaled = gc == null
+                ? new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB)
+                : gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        Graphics2D g = scaled.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+}
+
+// フレームごとの処理時間の計測
+// 区間ごとの時間をヒストグラムに集めてp50/p99を出し、オーバーレイとJFRのイベントで確認できるようにする
+// 計測はオーバーレイの表示中・JFRの記録中・-Dakari.profile=true の時だけ行い、それ以外はフラグを見るだけ
+// 計測・描画はゲームループのスレッドだけから行う
+class FrameProfiler {
+    // 計測区間
+    public static final int FRAME = 0;
+    public static final int UPDATE = 1;
+    public static final int RENDER = 2;
+    public static final int MOVE = 3;
+    public static final int FIRE = 4;
+    public static final int COLLISION = 5;
+    public static final int REMOVE = 6;
+    public static final int PAINT = 7;
+    public static final int PHASE_COUNT = 8;
+    private static final String[] PHASE_NAMES = {"frame", "update", "render", "move", "fire", "collision", "remove", "paint"};
+    // 何もしないプロファイラー (ウィンドウのないシミュレーション用)
+    public static final FrameProfiler NONE = new FrameProfiler();
+
+    // p50/p99を集計し直す間隔
+    private static final long WINDOW_NANOS = 2_000_000_000L;
+    // フレーム時間のグラフに表示するフレーム数
+    private static final int GRAPH_SIZE = 240;
+    private static final Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+    private final boolean available;
+    private final long frameBudgetNanos;
+    private final boolean alwaysOn = Boolean.getBoolean("akari.profile");
+    private volatile boolean overlayVisible = false;
+    private volatile boolean recording = false;
+    // このフレームを計測するか (フレームの始めに決める)
+    private boolean active = false;
+    private long frameStart;
+    // このフレームの区間ごとの合計時間
+    private final long[] current = new long[PHASE_COUNT];
+    private final LatencyHistogram[] histograms = new LatencyHistogram[PHASE_COUNT];
+    // 直前の集計結果 (オーバーレイに表示する)
+    private final long[] p50 = new long[PHASE_COUNT];
+    private final long[] p99 = new long[PHASE_COUNT];
+    private final long[] max = new long[PHASE_COUNT];
+    private long windowStart;
+    private final long[] frameGraph = new long[GRAPH_SIZE];
+    private int graphIndex = 0;
+    // 種類ごとのエンティティ数
+    private int enemies;
+    private int missiles;
+    private int enemyMissiles;
+    private int items;
+    private int sprites;
+    private int culled;
+    private int batches;
+    private long droppedTicks;
+    // GCの回数と時間 (直前の集計期間の分)
+    private final GarbageCollectorMXBean[] gcBeans;
+    private long gcCountStart;
+    private long gcTimeStart;
+    private long gcCount;
+    private long gcTime;
+
+    public FrameProfiler(long frameBudgetNanos) {
+        this.available = true;
+        this.frameBudgetNanos = frameBudgetNanos;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        gcBeans = ManagementFactory.getGarbageCollectorMXBeans().toArray(new GarbageCollectorMXBean[0]);
+        // JFRの記録が始まったら計測を始める
+        if (FlightRecorder.isAvailable()) {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recorderInitialized(FlightRecorder recorder) {
+                    updateRecording(recorder);
+                }
+
+                @Override
+                public void recordingStateChanged(Recording changed) {
+                    updateRecording(FlightRecorder.getFlightRecorder());
+                }
+            });
+        }
+    }
+
+    private FrameProfiler() {
+        this.available = false;
+        this.frameBudgetNanos = 0;
+        this.gcBeans = new GarbageCollectorMXBean[0];
+    }
+
+    private void updateRecording(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                running = true;
+            }
+        }
+        recording = running;
+    }
+
+    // フレームの始めに呼ぶ
+    public void beginFrame() {
+        boolean wasActive = active;
+        active = available && (overlayVisible || alwaysOn || recording);
+        if (!active) {
+            return;
+        }
+        frameStart = System.nanoTime();
+        if (!wasActive) {
+            startWindow(frameStart);
+        }
+    }
+
+    // 区間の開始 (計測しない時は0を返す)
+    public long begin() {
+        return active ? System.nanoTime() : 0L;
+    }
+
+    // 区間の終了 (同じ区間は1フレームの間で合計する)
+    public void end(int phase, long start) {
+        if (start != 0L) {
+            current[phase] += System.nanoTime() - start;
+        }
+    }
+
+    // フレームの終わりに呼ぶ
+    public void endFrame(long droppedTicks) {
+        if (!active) {
+            return;
+        }
+        long now = System.nanoTime();
+        current[FRAME] = now - frameStart;
+        this.droppedTicks = droppedTicks;
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            histograms[i].record(current[i]);
+        }
+        frameGraph[graphIndex] = current[FRAME];
+        graphIndex = (graphIndex + 1) % GRAPH_SIZE;
+
+        if (recording) {
+            commitEvents();
+        }
+        Arrays.fill(current, 0L);
+
+        if (now - windowStart >= WINDOW_NANOS) {
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                p50[i] = histograms[i].getPercentile(0.50);
+                p99[i] = histograms[i].getPercentile(0.99);
+                max[i] = histograms[i].getMax();
+            }
+            gcCount = totalGcCount() - gcCountStart;
+            gcTime = totalGcTime() - gcTimeStart;
+            startWindow(now);
+        }
+    }
+
+    private void startWindow(long now) {
+        windowStart = now;
+        for (LatencyHistogram histogram : histograms) {
+            histogram.clear();
+        }
+        gcCountStart = totalGcCount();
+        gcTimeStart = totalGcTime();
+    }
+
+    private void commitEvents() {
+        FrameEvent frame = new FrameEvent();
+        if (frame.shouldCommit()) {
+            frame.frameTime = current[FRAME];
+            frame.enemies = enemies;
+            frame.missiles = missiles;
+            frame.enemyMissiles = enemyMissiles;
+            frame.items = items;
+            frame.droppedTicks = droppedTicks;
+            frame.commit();
+        }
+        for (int i = 1; i < PHASE_COUNT; i++) {
+            if (current[i] == 0L) {
+                continue;
+            }
+            PhaseEvent phase = new PhaseEvent();
+            if (phase.shouldCommit()) {
+                phase.phase = PHASE_NAMES[i];
+                phase.phaseTime = current[i];
+                phase.commit();
+            }
+        }
+    }
+
+    private long totalGcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : gcBeans) {
+            total += Math.max(0, bean.getCollectionCount());
+        }
+        return total;
+    }
+
+    private long totalGcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : gcBeans) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    // 計測中か (GameWorldがエンティティ数を渡すかどうかの判定)
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setEntityCounts(int enemies, int missiles, int enemyMissiles, int items) {
+        this.enemies = enemies;
+        this.missiles = missiles;
+        this.enemyMissiles = enemyMissiles;
+        this.items = items;
+    }
+
+    // 描いたスプライト数・画面外で捨てた数・画像の切り替え回数 (StageScreenが描画の後に渡す)
+    public void setDrawCounts(int sprites, int culled, int batches) {
+        this.sprites = sprites;
+        this.culled = culled;
+        this.batches = batches;
+    }
+
+    // オーバーレイの表示・非表示 (F3を押した時にGame.tickからゲームループのスレッドで呼ばれる)
+    public void toggleOverlay() {
+        overlayVisible = !overlayVisible;
+    }
+
+    public boolean isOverlayVisible() {
+        return overlayVisible;
+    }
+
+    // オーバーレイの描画 (最後の行は描画の品質の段階)
+    public void drawOverlay(Graphics2D g, QualityGovernor quality) {
+        int x = 10;
+        int y = 80;
+        int width = GRAPH_SIZE + 180;
+        g.setColor(new Color(0, 0, 0, 180));
+        g.fillRect(x, y, width, 264);
+        g.setFont(OVERLAY_FONT);
+
+        // フレーム時間のグラフ (線はフレームの予算)
+        int graphBottom = y + 60;
+        g.setColor(Color.GREEN);
+        for (int i = 0; i < GRAPH_SIZE; i++) {
+            long nanos = frameGraph[(graphIndex + i) % GRAPH_SIZE];
+            int height = (int) Math.min(50, nanos * 25 / Math.max(1, frameBudgetNanos));
+            g.drawLine(x + 5 + i, graphBottom, x + 5 + i, graphBottom - height);
+        }
+        g.setColor(Color.RED);
+        g.drawLine(x + 5, graphBottom - 25, x + 5 + GRAPH_SIZE, graphBottom - 25);
+
+        g.setColor(Color.WHITE);
+        int line = graphBottom + 16;
+        g.drawString(String.format(Locale.ROOT, "%-10s %8s %8s %8s", "phase(ms)", "p50", "p99", "max"), x + 5, line);
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            line += 14;
+            g.drawString(String.format(Locale.ROOT, "%-10s %8.3f %8.3f %8.3f", PHASE_NAMES[i], p50[i] / 1e6, p99[i] / 1e6, max[i] / 1e6), x + 5, line);
+        }
+        line += 18;
+        g.drawString(String.format(Locale.ROOT, "enemies %d  missiles %d  enemy missiles %d  items %d", enemies, missiles, enemyMissiles, items), x + 5, line);
+        line += 14;
+        g.drawString(String.format(Locale.ROOT, "sprites %d  culled %d  batches %d", sprites, culled, batches), x + 5, line);
+        line += 14;
+        g.drawString(String.format(Locale.ROOT, "GC %d (%d ms) / %ds  dropped ticks %d", gcCount, gcTime, WINDOW_NANOS / 1_000_000_000L, droppedTicks), x + 5, line);
+        line += 14;
+        g.drawString(quality.describe(), x + 5, line);
+    }
+}
+
+// 処理時間のヒストグラム
+// 2のべき乗ごとの区間をさらに8つに分けて数える (誤差は12.5%以内)
+class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private final long[] counts = new long[64 << SUB_BITS];
+    private long total = 0;
+    private long max = 0;
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[index(nanos)]++;
+        total++;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    // 区間の上端の値
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BITS) - 1;
+        return ((long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift) + (1L << shift) - 1;
+    }
+
+    // percentileは0.0～1.0
+    public long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= target) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    // getMax
+    public long getMax() {
+        return max;
+    }
+
+    // getTotal
+    public long getTotal() {
+        return total;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0L);
+        total = 0;
+        max = 0;
+    }
+}
+
+// JFRのイベント (jcmd <pid> JFR.start などで記録すると出力される)
+@Name("akari.Frame")
+@Label("Frame")
+@Category("Akari Shooting")
+class FrameEvent extends Event {
+    @Label("Frame Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long frameTime;
+    @Label("Enemies")
+    int enemies;
+    @Label("Missiles")
+    int missiles;
+    @Label("Enemy Missiles")
+    int enemyMissiles;
+    @Label("Items")
+    int items;
+    @Label("Dropped Ticks")
+    long droppedTicks;
+}
+
+@Name("akari.Phase")
+@Label("Frame Phase")
+@Category("Akari Shooting")
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+    @Label("Phase Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long phaseTime;
+}
+
+// 文字列を画像にして使い回す
+// 内容が変わった時だけ描き直し、それ以外のフレームは画像を1回転送するだけにする
+// 数値は文字配列に直接書き込むので、毎フレーム呼んでもStringを作らない
+class TextSprite {
+    private final float size;
+    private final Color color;
+    // 描画に使うフォント (最初に描く時に派生させて保持する)
+    private Font font;
+    private char[] chars = new char[32];
+    private int length = 0;
+    private boolean hasNumber = false;
+    private int number;
+    private BufferedImage image;
+    private int ascent;
+    private boolean dirty = true;
+
+    public TextSprite(float size, Color color) {
+        this.size = size;
+        this.color = color;
+    }
+
+    public TextSprite(float size, Color color, String text) {
+        this(size, color);
+        setText(text);
+    }
+
+    public void setText(String text) {
+        if (!hasNumber && sameText(text)) {
+            return;
+        }
+        hasNumber = false;
+        ensureCapacity(text.length());
+        text.getChars(0, text.length(), chars, 0);
+        length = text.length();
+        dirty = true;
+    }
+
+    private boolean sameText(String text) {
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // labelの後に数値を続けて表示する (前回と同じなら何もしない)
+    public void setNumber(String label, int value) {
+        if (hasNumber && value == number) {
+            return;
+        }
+        hasNumber = true;
+        number = value;
+        ensureCapacity(label.length() + 11);
+        label.getChars(0, label.length(), chars, 0);
+        length = label.length() + formatInt(value, chars, label.length());
+        dirty = true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (chars.length < capacity) {
+            chars = new char[capacity];
+        }
+    }
+
+    // valueを10進数でbufferのoffsetから書き込み、書いた文字数を返す
+    static int formatInt(int value, char[] buffer, int offset) {
+        long v = value;
+        int start = offset;
+        if (v < 0) {
+            buffer[offset++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long n = v / 10; n > 0; n /= 10) {
+            digits++;
+        }
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        return offset + digits - start;
+    }
+
+    // (x, y)はdrawStringと同じく文字列の左端とベースライン
+    public void draw(Graphics g, int x, int y) {
+        if (length == 0) {
+            return;
+        }
+        prepare(g);
+        g.drawImage(image, x, y - ascent, null);
+    }
+
+    // 座標と大きさをscale倍にして描く (文字の画像は内容が変わるので、縮小した画像は持たずに毎回縮める)
+    public void draw(Graphics g, int x, int y, float scale) {
+        if (length == 0) {
+            return;
+        }
+        prepare(g);
+        g.drawImage(image, Math.round(x * scale), Math.round((y - ascent) * scale),
+                Math.round(image.getWidth() * scale), Math.round(image.getHeight() * scale), null);
+    }
+
+    // 内容が変わっていれば画像を描き直す
+    public void prepare(Graphics g) {
+        if (dirty && length > 0) {
+            render((Graphics2D) g);
+            dirty = false;
+        }
+    }
+
+    // 画像の大きさ (prepareの後で使う)
+    public int getWidth() {
+        return image == null ? 0 : image.getWidth();
+    }
+
+    public int getHeight() {
+        return image == null ? 0 : image.getHeight();
+    }
+
+    public int getAscent() {
+        return ascent;
+    }
+
+    private void render(Graphics2D g) {
+        if (font == null) {
+            font = g.getFont().deriveFont(size);
+        }
+        FontRenderContext frc = g.getFontRenderContext();
+        GlyphVector glyphs = font.createGlyphVector(frc, Arrays.copyOf(chars, length));
+        LineMetrics metrics = font.getLineMetrics(chars, 0, length, frc);
+        ascent = (int) Math.ceil(metrics.getAscent());
+        int width = Math.max(1, (int) Math.ceil(glyphs.getLogicalBounds().getWidth()) + 2);
+        int height = Math.max(1, ascent + (int) Math.ceil(metrics.getDescent()));
+        if (image == null || image.getWidth() < width || image.getHeight() != height) {
+            GraphicsConfiguration gc = g.getDeviceConfiguration();
+            image = gc.createCompatibleImage(Math.max(width, image == null ? 0 : image.getWidth()), height, Transparency.TRANSLUCENT);
+        }
+        Graphics2D ig = image.createGraphics();
+        ig.setComposite(AlphaComposite.Clear);
+        ig.fillRect(0, 0, image.getWidth(), image.getHeight());
+        ig.setComposite(AlphaComposite.SrcOver);
+        // 画面と同じ文字のアンチエイリアスで描く
+        Object antialiasing = g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+        if (antialiasing != null) {
+            ig.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, antialiasing);
+        }
+        ig.setColor(color);
+        ig.drawGlyphVector(glyphs, 0, ascent);
+        ig.dispose();
+    }
+}
+
+// ステージ中のスコア・ハイスコア・残り自機数の表示
+// 値が変わった時だけ文字の画像を描き直す
+class Hud {
+    private final TextSprite score = new TextSprite(30f, Color.WHITE);
+    private final TextSprite highScore = new TextSprite(30f, Color.WHITE);
+    private final TextSprite life = new TextSprite(30f, Color.WHITE);
+
+    public void draw(Screen screen, Graphics g, int scoreValue, int highScoreValue, int lifeValue) {
+        score.setNumber("SCORE: ", scoreValue);
+        highScore.setNumber("HISCORE: ", highScoreValue);
+        life.setNumber("LIFE: ", lifeValue);
+        screen.drawText(g, score, 700, 60);
+        screen.drawText(g, highScore, 300, 60);
+        screen.drawText(g, life, 80, 60);
+    }
+}
+
+// ダーティ矩形の管理 (-Dakari.dirtyRects=true の時に使う)
+// 画面を32ピクセルのタイルに分け、前のフレームと今のフレームでスプライトや文字を描いたタイルを記録する
+// 両方を合わせたタイルを横の連続と縦の連続でまとめて少数の矩形にし、その矩形だけ星空で塗り直してから全てのスプライトと文字を描く
+// (今のフレームで描く物は全て記録したタイルの中に収まるので、切り抜かずに描いても記録していないタイルは変わらない)
+// 星空が変わったフレーム (星を減らした時など、このモードでは星空は動かない) や、変更が画面の大半に及ぶフレームは全体を描き直す
+class DirtyRegion {
+    private static final int TILE_SIZE = 32;
+    private static final int COLUMNS = (Constants.SCREEN_WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    private static final int ROWS = (Constants.SCREEN_HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+    // 描き直すタイルがこの割合を超えたら全体を描き直す
+    private static final int FULL_REDRAW_PERCENT = 60;
+
+    private boolean[] current = new boolean[COLUMNS * ROWS];
+    private boolean[] previous = new boolean[COLUMNS * ROWS];
+    private boolean measuring = false;
+    private boolean fullRedraw = true;
+    private long starfieldVersion = -1;
+    // まとめ途中の矩形 (タイル単位、前の行から続いているもの)
+    private final int[] openLeft = new int[COLUMNS];
+    private final int[] openRight = new int[COLUMNS];
+    private final int[] openTop = new int[COLUMNS];
+    private int openCount;
+    private final int[] nextLeft = new int[COLUMNS];
+    private final int[] nextRight = new int[COLUMNS];
+    private final int[] nextTop = new int[COLUMNS];
+    // 直前のフレームの結果 (描き直す矩形、ピクセル単位で画面内に切り詰めたもの)
+    private final int[] rectX = new int[COLUMNS * ROWS];
+    private final int[] rectY = new int[COLUMNS * ROWS];
+    private final int[] rectWidth = new int[COLUMNS * ROWS];
+    private final int[] rectHeight = new int[COLUMNS * ROWS];
+    private boolean partial = false;
+    private int rectCount = 0;
+    private int dirtyTiles = 0;
+
+    // 描く範囲の記録を始める
+    public void begin(long starfieldVersion) {
+        boolean[] swap = previous;
+        previous = current;
+        current = swap;
+        Arrays.fill(current, false);
+        if (starfieldVersion != this.starfieldVersion) {
+            this.starfieldVersion = starfieldVersion;
+            fullRedraw = true;
+        }
+        measuring = true;
+    }
+
+    public boolean isMeasuring() {
+        return measuring;
+    }
+
+    // 描く範囲を記録する
+    public void add(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int left = Math.max(0, x / TILE_SIZE);
+        int top = Math.max(0, y / TILE_SIZE);
+        int right = Math.min(COLUMNS - 1, (x + width - 1) / TILE_SIZE);
+        int bottom = Math.min(ROWS - 1, (y + height - 1) / TILE_SIZE);
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                current[row * COLUMNS + column] = true;
+            }
+        }
+    }
+
+    // 記録を終えて、描き直す矩形を決める (全体を描き直す時はfalse)
+    public boolean end() {
+        measuring = false;
+        dirtyTiles = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] || previous[i]) {
+                dirtyTiles++;
+            }
+        }
+        if (fullRedraw || dirtyTiles * 100 > current.length * FULL_REDRAW_PERCENT) {
+            fullRedraw = false;
+            rectCount = 1;
+            dirtyTiles = current.length;
+            return false;
+        }
+
+        rectCount = 0;
+        openCount = 0;
+        for (int row = 0; row <= ROWS; row++) {
+            int nextCount = 0;
+            int column = 0;
+            while (row < ROWS && column < COLUMNS) {
+                if (!isDirty(row, column)) {
+                    column++;
+                    continue;
+                }
+                int left = column;
+                while (column < COLUMNS && isDirty(row, column)) {
+                    column++;
+                }
+                // 前の行に同じ横幅の矩形があれば下に伸ばす
+                int top = row;
+                for (int i = 0; i < openCount; i++) {
+                    if (openLeft[i] == left && openRight[i] == column) {
+                        top = openTop[i];
+                        openRight[i] = -1;
+                        break;
+                    }
+                }
+                nextLeft[nextCount] = left;
+                nextRight[nextCount] = column;
+                nextTop[nextCount] = top;
+                nextCount++;
+            }
+            // 伸ばせなかった矩形は閉じる
+            for (int i = 0; i < openCount; i++) {
+                if (openRight[i] >= 0) {
+                    int x = openLeft[i] * TILE_SIZE;
+                    int y = openTop[i] * TILE_SIZE;
+                    rectX[rectCount] = x;
+                    rectY[rectCount] = y;
+                    rectWidth[rectCount] = Math.min(openRight[i] * TILE_SIZE, Constants.SCREEN_WIDTH) - x;
+                    rectHeight[rectCount] = Math.min(row * TILE_SIZE, Constants.SCREEN_HEIGHT) - y;
+                    rectCount++;
+                }
+            }
+            System.arraycopy(nextLeft, 0, openLeft, 0, nextCount);
+            System.arraycopy(nextRight, 0, openRight, 0, nextCount);
+            System.arraycopy(nextTop, 0, openTop, 0, nextCount);
+            openCount = nextCount;
+        }
+        return true;
+    }
+
+    // 矩形だけを描き直している最中か (Screen.renderDirtyの2回目の描画の間)
+    public boolean isPartial() {
+        return partial;
+    }
+
+    void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    public int getRectX(int i) {
+        return rectX[i];
+    }
+
+    public int getRectY(int i) {
+        return rectY[i];
+    }
+
+    public int getRectWidth(int i) {
+        return rectWidth[i];
+    }
+
+    public int getRectHeight(int i) {
+        return rectHeight[i];
+    }
+
+    private boolean isDirty(int row, int column) {
+        int i = row * COLUMNS + column;
+        return current[i] || previous[i];
+    }
+
+    // 次のフレームは全体を描き直す
+    public void invalidate() {
+        fullRedraw = true;
+    }
+
+    // getRectCount
+    public int getRectCount() {
+        return rectCount;
+    }
+
+    // 描き直したタイルの割合 (%)
+    public int getDirtyPercent() {
+        return dirtyTiles * 100 / current.length;
+    }
+}
+
+// 1フレーム分のスプライトの描画をまとめて行うキュー
+// 描く物を層と画像の種類と座標だけで積んでおき、画面の外に完全に出ている物はその時点で捨てる
+// 最後に層→画像の種類の順に並べ替えて (計数ソートなので割り当てなし、同じ種類の中は積んだ順) まとめて描き、
+// 同じ画像の転送が続くようにしてJava2Dの描画パイプラインの切り替えを減らす
+class RenderQueue {
+    // 層 (小さい方から描く)
+    public static final int SHIPS = 0;
+    public static final int PROJECTILES = 1;
+    public static final int ITEMS = 2;
+    private static final int LAYER_COUNT = 3;
+    private static final int KEY_COUNT = ImageKey.values().length;
+
+    private final ImageLoader imageLoader = ImageLoader.getInstance();
+    private int[] buckets = new int[1024];
+    private int[] xs = new int[1024];
+    private int[] ys = new int[1024];
+    private int[] order = new int[1024];
+    private final int[] counts = new int[LAYER_COUNT * KEY_COUNT + 1];
+    private int size = 0;
+    // 直前のフレームの描いた数・画面外で捨てた数・画像が切り替わった回数
+    private int drawn = 0;
+    private int culled = 0;
+    private int batches = 0;
+
+    // 積んだ物を捨てて新しいフレームを始める
+    public void clear() {
+        size = 0;
+        culled = 0;
+    }
+
+    // 描く物を積む (keyはImageKeyのordinal、画面の外に完全に出ている物は積まない)
+    public void add(int layer, int key, int x, int y) {
+        if (x >= Constants.SCREEN_WIDTH || y >= Constants.SCREEN_HEIGHT
+                || x + imageLoader.getImageWidth(key) <= 0 || y + imageLoader.getImageHeight(key) <= 0) {
+            culled++;
+            return;
+        }
+        if (size == buckets.length) {
+            int capacity = size * 2;
+            buckets = Arrays.copyOf(buckets, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        buckets[size] = layer * KEY_COUNT + key;
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    public void add(int layer, ImageKey key, int x, int y) {
+        add(layer, key.ordinal(), x, y);
+    }
+
+    // 並べ替えて描く (ダーティ矩形と縮小描画はScreen.drawSpriteに任せる)
+    public void flush(Screen screen, Graphics g) {
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < size; i++) {
+            counts[buckets[i] + 1]++;
+        }
+        for (int b = 1; b < counts.length; b++) {
+            counts[b] += counts[b - 1];
+        }
+        for (int i = 0; i < size; i++) {
+            order[counts[buckets[i]]++] = i;
+        }
+
+        batches = 0;
+        int previous = -1;
+        Image image = null;
+        for (int n = 0; n < size; n++) {
+            int i = order[n];
+            if (buckets[i] != previous) {
+                previous = buckets[i];
+                image = imageLoader.getImage(previous % KEY_COUNT);
+                batches++;
+            }
+            screen.drawSprite(g, image, xs[i], ys[i]);
+        }
+        drawn = size;
+        size = 0;
+    }
+
+    // getDrawn
+    public int getDrawn() {
+        return drawn;
+    }
+
+    // getCulled
+    public int getCulled() {
+        return culled;
+    }
+
+    // getBatches
+    public int getBatches() {
+        return batches;
+    }
+}
+
+abstract class Screen extends JPanel {
+    protected Game game;
+    // 背景の星空 (画面を切り替えても同じものが続く)
+    protected Starfield starfield = Starfield.getInstance();
+    // ダーティ矩形での描画の記録 (使う画面だけ)
+    private DirtyRegion dirtyRegion;
+    // 縮小して描く時の倍率と縮小した画像 (RenderSurfaceが縮小して描く間だけ設定する)
+    private SpriteScaler spriteScaler;
+
+    public Screen(Game game) {
+        this.game = game;
+        // 描画はRenderSurfaceから行うので、Swingの再描画は無視する
+        setIgnoreRepaint(true);
+    }
+
+    public abstract void update(); // 画面の更新
+    public abstract void render(Graphics2D g, float alpha); // バックバッファへの描画 (alphaはtick間の補間係数)
+
+    // 前回tickの位置と今回tickの位置を補間する
+    protected static int lerp(int previous, int current, float alpha) {
+        return previous + Math.round((current - previous) * alpha);
+    }
+
+    // ダーティ矩形での描画に対応しているか (描画をdrawSpriteとdrawTextだけで行う画面)
+    public boolean supportsDirtyRegions() {
+        return false;
+    }
+
+    // 品質を下げた時に小さい解像度で描いて拡大してよいか (描画の重いプレイ画面だけ)
+    public boolean supportsScaledRendering() {
+        return false;
+    }
+
+    // 前のフレームの内容が残っているバッファに、変わった所だけを描き直す
+    // 1回目は何も描かずに描く範囲だけを記録し、2回目は記録した矩形だけを星空で塗り直してスプライトと文字を描く
+    // (複雑な形に切り抜くとJava2Dの描画がどれも遅くなるので、切り抜きは使わない)
+    public void renderDirty(Graphics2D g, float alpha) {
+        if (dirtyRegion == null) {
+            dirtyRegion = new DirtyRegion();
+        }
+        dirtyRegion.begin(starfield.getVersion());
+        Graphics2D measure = (Graphics2D) g.create();
+        measure.setClip(0, 0, 0, 0);
+        render(measure, alpha);
+        measure.dispose();
+        dirtyRegion.setPartial(dirtyRegion.end());
+        try {
+            render(g, alpha);
+        } finally {
+            dirtyRegion.setPartial(false);
+        }
+    }
+
+    // getDirtyRegion
+    public DirtyRegion getDirtyRegion() {
+        return dirtyRegion;
+    }
+
+    void setSpriteScaler(SpriteScaler spriteScaler) {
+        this.spriteScaler = spriteScaler;
+    }
+
+    // 画面全体を星空で塗りつぶす
+    protected void drawStarfield(Graphics g) {
+        if (dirtyRegion != null && dirtyRegion.isPartial()) {
+            starfield.draw(g, dirtyRegion);
+            return;
+        }
+        if (spriteScaler != null) {
+            starfield.draw(g, spriteScaler.getScale());
+            return;
+        }
+        starfield.draw(g);
+    }
+
+    // 画像を描く (ダーティ矩形の記録中は範囲を記録するだけ)
+    protected void drawSprite(Graphics g, Image image, int x, int y) {
+        if (dirtyRegion != null && dirtyRegion.isMeasuring()) {
+            dirtyRegion.add(x, y, image.getWidth(null), image.getHeight(null));
+            return;
+        }
+        if (spriteScaler != null) {
+            g.drawImage(spriteScaler.getImage(image), spriteScaler.scale(x), spriteScaler.scale(y), this);
+            return;
+        }
+        g.drawImage(image, x, y, this);
+    }
+
+    // 文字を描く (ダーティ矩形の記録中は範囲を記録するだけ)
+    protected void drawText(Graphics g, TextSprite text, int x, int y) {
+        if (dirtyRegion != null && dirtyRegion.isMeasuring()) {
+            text.prepare(g);
+            dirtyRegion.add(x, y - text.getAscent(), text.getWidth(), text.getHeight());
+            return;
+        }
+        if (spriteScaler != null) {
+            text.draw(g, x, y, spriteScaler.getScale());
+            return;
+        }
+        text.draw(g, x, y);
+    }
+
+    public void init() {
+        // 画面の初期化処理
+    }
+
+    // 表示しているゲームのシミュレーション (ステージ画面以外はnull)
+    public GameWorld getWorld() {
+        return null;
+    }
+}
+class TitleScreen extends Screen {
+    // メニューの文字は最初に1回だけ画像にする
+    private final TextSprite titleText = new TextSprite(50f, Color.WHITE, "Akari Shooting Game");
+    private final TextSprite newGameText = new TextSprite(30f, Color.WHITE, "New Game");
+    private final TextSprite rankingText = new TextSprite(30f, Color.WHITE, "Score Ranking");
+    private final TextSprite arrowText = new TextSprite(30f, Color.WHITE, ">");
+    private InputHandler inputHandler;
+    private int arrow = 0;
+
+    public TitleScreen(Game game) {
+        super(game);
+        inputHandler = game.getInput();
+    }
+    public void update() {
+        // タイトル画面の更新処理
+        // 右矢印キーを押したらarrowを1増やす
+        if (inputHandler.wasPressed(InputHandler.RIGHT)) {
+            arrow++;
+            if (arrow > 1) {
+                arrow = 1;
+            }
+        }
+        // 左矢印キーを押したらarrowを1減らす
+        else if (inputHandler.wasPressed(InputHandler.LEFT)) {
+            arrow--;
+            if (arrow < 0) {
+                arrow = 0;
+            }
+        }
+
+        // 押した瞬間だけ選択する (押したままだと次の画面で続けて反応してしまう)
+        if (inputHandler.wasPressed(InputHandler.FIRE)) {
+            if (arrow == 0) {
+                // New Gameを選択したらステージ画面へ
+                game.getScreens().startGame();
+            } else if (arrow == 1) {
+                // Score Rankingを選択したらハイスコア画面へ
+                game.getScreens().showHighScores();
+            }
+        }
+    }
+    public void render(Graphics2D g, float alpha) {
+        // タイトル画面の描画処理
+        paint(g);
+    }
+
+    // paint
+    public void paint(Graphics g) {
+        // 画面を星空で塗りつぶす
+        starfield.draw(g);
+
+        // 白文字で「New Game」と「Score Ranking」を表示
+        newGameText.draw(g, 400, 300);
+        rankingText.draw(g, 400, 400);
+        // 右矢印で選択中の項目を表示
+        if (arrow == 0) {
+            arrowText.draw(g, 350, 300);
+        } else if (arrow == 1) {
+            arrowText.draw(g, 350, 400);
+        }
+
+        // タイトルを白文字で表示
+        titleText.draw(g, 200, 200);
+    }
+}
+// ステージ画面の中身 (worldとステージの配置、文字の画像) を別スレッドで用意する
+// 画面そのもの (JPanel) はSwingの部品なので、用意ができてからゲームループのスレッドで作る
+class StageSetup {
+    final GameWorld world;
+    // 入力の記録と再生 (-Dakari.record=ファイル / -Dakari.replay=ファイル)
+    InputRecorder recorder;
+    InputPlayer replay;
+    // 「Stage N」の文字はステージごとに用意しておく
+    final TextSprite[] stageTexts = new TextSprite[StageLayout.getStageCount()];
+    final TextSprite gameOverText = new TextSprite(50f, Color.WHITE, "Game Over");
+    final TextSprite gameClearText = new TextSprite(50f, Color.WHITE, "Game Clear");
+    final TextSprite connectingText = new TextSprite(50f, Color.WHITE, "Connecting...");
+
+    {
+        for (int i = 0; i < stageTexts.length; i++) {
+            stageTexts[i] = new TextSprite(50f, Color.WHITE, "Stage " + (i + 1));
+        }
+    }
+
+    StageSetup(GameWorld world) {
+        this.world = world;
+    }
+
+    // 新しいゲームの分を用意する (別スレッドで呼ぶ、1面の配置もここで読み込む)
+    static StageSetup create() {
+        InputPlayer replay = null;
+        String replayFile = System.getProperty("akari.replay");
+        if (replayFile != null) {
+            try {
+                replay = new InputPlayer(new File(replayFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (replay != null) {
+            StageSetup setup = new StageSetup(replay.createWorld());
+            setup.replay = replay;
+            return setup.prepare();
+        }
+        StageSetup setup = new StageSetup(new GameWorld(Long.getLong("akari.seed", System.nanoTime()), 1));
+        String recordFile = System.getProperty("akari.record");
+        if (recordFile != null && Constants.CONNECT.isEmpty()) {
+            setup.recorder = new InputRecorder(new File(recordFile), setup.world.getSeed(), setup.world.getStage());
+        }
+        return setup.prepare();
+    }
+
+    // 文字の画像を先に作り、表示中に作らないようにする
+    private StageSetup prepare() {
+        BufferedImage image;
+        if (GraphicsEnvironment.isHeadless()) {
+            image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        } else {
+            image = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                    .createCompatibleImage(1, 1, Transparency.TRANSLUCENT);
+        }
+        Graphics2D g = image.createGraphics();
+        for (TextSprite text : stageTexts) {
+            text.prepare(g);
+        }
+        gameOverText.prepare(g);
+        gameClearText.prepare(g);
+        connectingText.prepare(g);
+        g.dispose();
+        return this;
+    }
+}
+class StageScreen extends Screen {
+    // ゲームのシミュレーション (この画面はその表示と入力の受け渡しだけを行う)
+    GameWorld world;
+    ImageLoader imageLoader;
+    InputHandler inputHandler;
+    ScoreManager scoreManager;
+    // 入力の記録と再生 (-Dakari.record=ファイル / -Dakari.replay=ファイル)
+    InputRecorder recorder;
+    InputPlayer replay;
+    // 協力プレイの接続 (-Dakari.connect=host:port の時、worldはサーバーから届いた状態を映したもの)
+    CoopClient coop;
+    // サーバーへの接続 (別スレッドで行い、WELCOMEが届くまではゲームを進めずに「Connecting...」を表示する)
+    CompletableFuture<CoopClient> connecting;
+    // ハイスコアを更新済みか
+    boolean highScoreUpdated = false;
+    // 登録したスコアの順位
+    int rank = 0;
+    // スコアなどの表示と、ステージ名などの文字
+    private final Hud hud = new Hud();
+    // スプライトをまとめて描くキュー
+    private final RenderQueue renderQueue = new RenderQueue();
+    // 「Stage N」などの文字 (StageSetupで用意したもの)
+    private final TextSprite[] stageTexts;
+    private final TextSprite gameOverText;
+    private final TextSprite gameClearText;
+    private final TextSprite connectingText;
+    private final TextSprite rankText = new TextSprite(30f, Color.WHITE);
+    // 描画時の補間係数
+    float alpha = 1f;
+
+    // 別スレッドで用意したworldと文字で画面を作る (JPanelなのでゲームループのスレッドで作る)
+    public StageScreen(Game game, StageSetup setup) {
+        super(game);
+        world = setup.world;
+        recorder = setup.recorder;
+        replay = setup.replay;
+        stageTexts = setup.stageTexts;
+        gameOverText = setup.gameOverText;
+        gameClearText = setup.gameClearText;
+        connectingText = setup.connectingText;
+        world.setProfiler(game.getProfiler());
+        imageLoader = ImageLoader.getInstance();
+        scoreManager = game.scoreManager;
+        inputHandler = game.getInput();
+    }
+
+    public StageScreen(Game game, GameWorld world) {
+        this(game, new StageSetup(world));
+    }
+
+    // ウィンドウなしで描画する (ベンチマーク用、キー入力はウィンドウに登録していないInputHandlerに直接入れる)
+    StageScreen(GameWorld world, ScoreManager scoreManager) {
+        super(null);
+        StageSetup setup = new StageSetup(world);
+        this.world = world;
+        this.scoreManager = scoreManager;
+        stageTexts = setup.stageTexts;
+        gameOverText = setup.gameOverText;
+        gameClearText = setup.gameClearText;
+        connectingText = setup.connectingText;
+        imageLoader = ImageLoader.getInstance();
+        inputHandler = new InputHandler();
+    }
+
+    // 協力プレイの時はサーバーへの接続を始める (ゲームループのスレッドでは待たない)
+    @Override
+    public void init() {
+        if (replay != null || Constants.CONNECT.isEmpty() || coop != null || connecting != null) {
+            return;
+        }
+        connecting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return CoopClient.open(CoopClient.parseAddress(Constants.CONNECT), 5000);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // 接続が終わっていればサーバーの状態を映したworldに差し替える (つながらなければ1人で遊ぶ)
+    // 接続中ならtrue
+    private boolean awaitConnection() {
+        if (connecting == null) {
+            return false;
+        }
+        if (!connecting.isDone()) {
+            return true;
+        }
+        try {
+            coop = connecting.join();
+            world = coop.getWorld();
+            world.setProfiler(game.getProfiler());
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+        }
+        connecting = null;
+        return false;
+    }
+
+    public void update() {
+        if (awaitConnection()) {
+            return;
+        }
+        int input = inputHandler.getInputBits();
+        boolean replaying = replay != null && !replay.isFinished();
+        if (replaying) {
+            input = replay.nextInput();
+        }
+        if (recorder != null) {
+            recorder.record(input);
+        }
+        if (coop != null) {
+            coop.tick(input);
+        } else {
+            world.tick(input);
+        }
+        if (replaying && replay.isFinished()) {
+            System.out.println(replay.matches(world) ? "replay OK" : "replay MISMATCH");
+        }
+
+        // ゲームオーバー・ゲームクリアになったらハイスコアの更新と記録の書き出し
+        if ((world.isGameOver() || world.isGameClear()) && !highScoreUpdated) {
+            rank = scoreManager.getRank(world.getScore());
+            scoreManager.submit(Constants.PLAYER_NAME, world.getStage(), world.getScore());
+            highScoreUpdated = true;
+            if (recorder != null) {
+                recorder.close(world);
+            }
+        }
+
+        // spaceを押したらタイトル画面へ
+        if (game != null && world.isWaitingForContinue() && inputHandler.wasPressed(InputHandler.FIRE)) {
+            if (coop != null) {
+                coop.close();
+                coop = null;
+            }
+            game.getScreens().showTitle();
+        }
+    }
+
+    public void render(Graphics2D g, float alpha) {
+        this.alpha = alpha;
+        paint(g);
+    }
+
+    @Override
+    public boolean supportsDirtyRegions() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsScaledRendering() {
+        return true;
+    }
+
+    @Override
+    public GameWorld getWorld() {
+        return world;
+    }
+
+    // paint
+    public void paint(Graphics g) {
+        Player player = world.getPlayer();
+        Boss boss = world.getBoss();
+        EntityStore enemies = world.getEnemies();
+        EntityStore missiles = world.getMissiles();
+        EntityStore enemyMissiles = world.getEnemyMissiles();
+        EntityStore items = world.getItems();
+        // 品質を下げている時は敵機とボス機の爆発を省く (ウィンドウなしの描画は常に最高品質)
+        boolean explosions = game == null || game.getQuality().isExplosionsVisible();
+
+        // 画面を星空で塗りつぶす
+        drawStarfield(g);
+        if (connecting != null) {
+            drawText(g, connectingText, 400, 400);
+            return;
+        }
+        if (world.getDisplayStage() > 0) {
+            drawText(g, stageTexts[world.getStage() - 1], 400, 400);
+            return;
+        }
+
+        if (world.isGameOver()) {
+            drawText(g, gameOverText, 400, 400);
+        }
+
+        if (world.isGameClear()) {
+            drawText(g, gameClearText, 400, 400);
+        }
+
+        if (rank > 0) {
+            rankText.setNumber("Rank ", rank);
+            drawText(g, rankText, 400, 460);
+        }
+
+        // 描く物をキューに積み、画面外の物を捨てて層と画像の種類ごとにまとめて描く
+        renderQueue.clear();
+
+        // playerの描画 (協力プレイでは全員の自機)
+        for (int p = 0; p < world.getPlayerCount(); p++) {
+            Player ship = world.getPlayer(p);
+            if (ship.getBang() > 0 && !ship.isAlive()) {
+                renderQueue.add(RenderQueue.SHIPS, ImageKey.PLAYER_BANG, lerp(ship.getPrevX(), ship.getX(), alpha), lerp(ship.getPrevY(), ship.getY(), alpha));
+            } else if (ship.isAlive()) {
+                renderQueue.add(RenderQueue.SHIPS, ImageKey.PLAYER, lerp(ship.getPrevX(), ship.getX(), alpha), lerp(ship.getPrevY(), ship.getY(), alpha));
+            }
+        }
+        // 敵機の描画
+        for (int i = 0; i < enemies.size(); i++) {
+            if (enemies.isAlive(i)) {
+                renderQueue.add(RenderQueue.SHIPS, enemies.sprite[i], lerp(enemies.prevX[i], enemies.x[i], alpha), lerp(enemies.prevY[i], enemies.y[i], alpha));
+            } else if(enemies.bang[i] > 0 && explosions) {
+                renderQueue.add(RenderQueue.SHIPS, ImageKey.ENEMY_BANG, enemies.x[i], enemies.y[i]);
+            }
+        }
+
+        // ボス機の描画
+        if (boss != null) {
+            if (boss.getBang() > 0) {
+                if (explosions) {
+                    renderQueue.add(RenderQueue.SHIPS, ImageKey.BOSS_BANG, boss.getX(), boss.getY());
+                }
+            } else if (boss.isAlive()) {
+                renderQueue.add(RenderQueue.SHIPS, boss.getKey(), lerp(boss.getPrevX(), boss.getX(), alpha), lerp(boss.getPrevY(), boss.getY(), alpha));
+            }
+        }
+
+        // ミサイルの描画
+        for (int i = 0; i < missiles.size(); i++) {
+            if(!missiles.isAlive(i)) {
+                continue;
+            }
+            renderQueue.add(RenderQueue.PROJECTILES, ImageKey.PLAYER_MISSILE, missiles.x[i], lerp(missiles.prevY[i], missiles.y[i], alpha));
+        }
+
+        // 敵機のミサイルの描画
+        int enemyMissileKey = ImageKey.ENEMY_MISSILE.ordinal();
+        for (int i = 0; i < enemyMissiles.size(); i++) {
+            renderQueue.add(RenderQueue.PROJECTILES, enemyMissileKey, enemyMissiles.x[i], lerp(enemyMissiles.prevY[i], enemyMissiles.y[i], alpha));
+        }
+
+        // アイテムの描画 (画像はアイテムの種類ごとに追加時に決まっている)
+        for (int i = 0; i < items.size(); i++) {
+            if (!items.isAlive(i)) {
+                continue;
+            }
+            renderQueue.add(RenderQueue.ITEMS, items.sprite[i], items.x[i], lerp(items.prevY[i], items.y[i], alpha));
+        }
+        renderQueue.flush(this, g);
+        if (game != null && game.getProfiler().isActive()) {
+            game.getProfiler().setDrawCounts(renderQueue.getDrawn(), renderQueue.getCulled(), renderQueue.getBatches());
+        }
+
+        // スコア・ハイスコア・残り自機数の描画
+        hud.draw(this, g, world.getScore(), scoreManager.getHighScore(), player.getLife());
+    }
+}
+class GameOverScreen extends Screen {
+    public GameOverScreen(Game game) {
+        super(game);
+    }
+    public void update() {
+    }
+    public void render(Graphics2D g, float alpha) {
+    }
+}
+class GameClearScreen extends Screen {
+    public GameClearScreen(Game game) {
+        super(game);
+    }
+    public void update() {
+    }
+    public void render(Graphics2D g, float alpha) {
+    }
+}
+class HighScoreScreen extends Screen {
+    // 1ページに表示する件数
+    private static final int PAGE_SIZE = 10;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
+    // 順位・名前・ステージ・スコア・日時の列のx座標
+    private static final int[] COLUMN_X = {130, 210, 470, 600, 740};
+    private final TextSprite titleText = new TextSprite(50f, Color.WHITE, "High Score");
+    private final TextSprite loadingText = new TextSprite(24f, Color.WHITE, "Loading...");
+    private final TextSprite pageText = new TextSprite(24f, Color.WHITE);
+    // 表示中のページの文字 (ページの内容が変わった時だけ作り直す)
+    private final TextSprite[][] rowTexts = new TextSprite[PAGE_SIZE][COLUMN_X.length];
+    ScoreManager scoreManager;
+    InputHandler inputHandler;
+    // 表示中のページ
+    private final ScoreEntry[] page = new ScoreEntry[PAGE_SIZE];
+    private int pageLength = 0;
+    private int offset = 0;
+    // 文字にしたページ
+    private final ScoreEntry[] shownPage = new ScoreEntry[PAGE_SIZE];
+    private int shownLength = 0;
+    private int shownOffset = -1;
+    private int shownPages = -1;
+
+    {
+        for (TextSprite[] row : rowTexts) {
+            for (int c = 0; c < row.length; c++) {
+                row[c] = new TextSprite(24f, Color.WHITE);
+            }
+        }
+    }
+
+    public HighScoreScreen(Game game) {
+        super(game);
+        scoreManager = game.scoreManager;
+        inputHandler = game.getInput();
+    }
+
+    // 表示するたびに最初のページから
+    @Override
+    public void init() {
+        offset = 0;
+    }
+
+    public void update() {
+        // 左右キーでページを送る
+        int total = scoreManager.getEntryCount();
+        if (inputHandler.wasPressed(InputHandler.RIGHT)) {
+            if (offset + PAGE_SIZE < total) {
+                offset += PAGE_SIZE;
+            }
+        } else if (inputHandler.wasPressed(InputHandler.LEFT)) {
+            if (offset > 0) {
+                offset -= PAGE_SIZE;
+            }
+        }
+        pageLength = scoreManager.getTop(offset, page);
+        updateTexts();
+
+        // スペースキーを押したらタイトル画面へ
+        if (inputHandler.wasPressed(InputHandler.FIRE)) {
+            game.getScreens().showTitle();
+        }
+    }
+    public void render(Graphics2D g, float alpha) {
+        paint(g);
+    }
+    // ページの内容かページ数が変わっていれば文字を作り直す
+    private void updateTexts() {
+        int pages = Math.max(1, (scoreManager.getEntryCount() + PAGE_SIZE - 1) / PAGE_SIZE);
+        boolean changed = offset != shownOffset || pageLength != shownLength || pages != shownPages;
+        for (int i = 0; i < pageLength && !changed; i++) {
+            changed = page[i] != shownPage[i];
+        }
+        if (!changed) {
+            return;
+        }
+        for (int i = 0; i < pageLength; i++) {
+            ScoreEntry entry = page[i];
+            TextSprite[] row = rowTexts[i];
+            row[0].setText((offset + i + 1) + ".");
+            row[1].setText(entry.getName());
+            row[2].setNumber("Stage ", entry.getStage());
+            row[3].setNumber("", entry.getScore());
+            row[4].setText(DATE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.getTimestamp()), ZoneId.systemDefault())));
+            shownPage[i] = entry;
+        }
+        pageText.setText("Page " + (offset / PAGE_SIZE + 1) + " / " + pages + "    \u2190 \u2192 : Page    Space : Title");
+        shownOffset = offset;
+        shownLength = pageLength;
+        shownPages = pages;
+    }
+
+    public void paint(Graphics g) {
+        // 画面を星空で塗りつぶす
+        starfield.draw(g);
+
+        // タイトルを白文字で表示
+        titleText.draw(g, 400, 150);
+
+        if (!scoreManager.isLoaded()) {
+            loadingText.draw(g, 400, 300);
+            return;
+        }
+
+        // 　ハイスコアを表示
+        for (int i = 0; i < shownLength; i++) {
+            int y = 230 + i * 40;
+            for (int c = 0; c < COLUMN_X.length; c++) {
+                rowTexts[i][c].draw(g, COLUMN_X[c], y);
+            }
+        }
+
+        pageText.draw(g, 250, 680);
+    }
+}
+// エンティティの配列を決まった大きさの塊に分けて、ForkJoinPoolで並列に処理する
+// 塊の分け方はスレッド数によらないので、塊ごとの結果を番号順にまとめれば、スレッド数によらず同じ結果になる
+class ParallelPhase {
+    public static final int CHUNK_SIZE = 1024;
+
+    // 塊ごとの処理 (from～to-1番目を処理し、他の塊と共有するものには書き込まない)
+    interface Body {
+        void run(int chunk, int from, int to);
+    }
+
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    // 塊ごとの結果と当たり判定の検索結果
+    private IntList[] buffers = new IntList[0];
+    private CollisionWorld.Query[] queries = new CollisionWorld.Query[0];
+
+    // count個を塊ごとに処理する (parallelがfalseなら同じ分け方で順番に処理する)
+    // 処理が終わったら、結果をbuffer(0)からbuffer(chunkCount(count) - 1)の順に取り出す
+    public void run(int count, Body body, boolean parallel) {
+        int chunks = chunkCount(count);
+        if (buffers.length < chunks) {
+            int length = buffers.length;
+            buffers = Arrays.copyOf(buffers, chunks);
+            queries = Arrays.copyOf(queries, chunks);
+            for (int i = length; i < chunks; i++) {
+                buffers[i] = new IntList();
+                queries[i] = new CollisionWorld.Query();
+            }
+        }
+        for (int i = 0; i < chunks; i++) {
+            buffers[i].clear();
+        }
+        // ワーカーが1つしかない時はスレッドを切り替える分だけ遅くなるので、順番に処理する
+        if (parallel && chunks > 1 && pool.getParallelism() > 1) {
+            pool.invoke(new ChunkTask(body, count, 0, chunks));
+        } else {
+            for (int i = 0; i < chunks; i++) {
+                body.run(i, i * CHUNK_SIZE, Math.min(count, (i + 1) * CHUNK_SIZE));
+            }
+        }
+    }
+
+    public static int chunkCount(int count) {
+        return (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    // 塊ごとの結果
+    public IntList buffer(int chunk) {
+        return buffers[chunk];
+    }
+
+    // 塊ごとの当たり判定の検索結果
+    public CollisionWorld.Query query(int chunk) {
+        return queries[chunk];
+    }
+
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Body body;
+        private final int count;
+        private final int from;
+        private final int to;
+
+        ChunkTask(Body body, int count, int from, int to) {
+            this.body = body;
+            this.count = count;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                body.run(from, from * CHUNK_SIZE, Math.min(count, to * CHUNK_SIZE));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(body, count, from, mid), new ChunkTask(body, count, mid, to));
+        }
+    }
+}
+
+// intの可変長の列
+class IntList {
+    private int[] values = new int[64];
+    private int size = 0;
+
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int get(int i) {
+        return values[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
+
+// ゲームのシミュレーション
+// 自機・敵機・ボス機・弾・アイテム・スコア・ステージの状態を持ち、Swingに依存せずに動く
+// (java.awt.headless=true でも動くので、テストやボット、ベンチマークから直接進められる)
+class GameWorld {
+    // 1tick分の入力のビット
+    public static final int INPUT_LEFT = 1;
+    public static final int INPUT_RIGHT = 2;
+    public static final int INPUT_FIRE = 4;
+    // 協力プレイの最大人数
+    public static final int MAX_PLAYERS = 4;
+
+    private static final ItemType[] ITEM_TYPES = ItemType.values();
+    private static final ImageKey[] IMAGE_KEYS = ImageKey.values();
+
+    private final ImageLoader imageLoader = ImageLoader.getInstance();
+    // ゲーム中の乱数は全てこの乱数から取る (シードが同じなら同じ展開になる)
+    private final GameRandom random;
+    private final long seed;
+    // 難易度の調整値
+    private final GameParams params;
+    // 自機 (協力プレイでは人数分、playerはこの端末で操作する自機)
+    private final Player[] players;
+    private int localPlayer = 0;
+    Player player;
+    // tick(int)で使う入力 (自機ごと)
+    private final int[] inputs;
+    // 敵機・弾・アイテムは種類ごとに構造体配列で保持する
+    final EntityStore enemies = new EntityStore(Constants.ENEMY_CAPACITY);
+    final EntityStore missiles = new EntityStore(Constants.MISSILE_CAPACITY);
+    final EntityStore enemyMissiles = new EntityStore(Constants.ENEMY_MISSILE_CAPACITY);
+    final EntityStore items = new EntityStore(Constants.ITEM_CAPACITY);
+    Boss boss;
+    // 当たり判定用の空間分割
+    private final CollisionWorld collisionWorld = new CollisionWorld();
+    // 弾の移動
+    private final ProjectileKernel kernel = Constants.SCALAR_PROJECTILES ? ProjectileKernel.SCALAR : ProjectileKernel.getPreferred();
+    // 移動・発射・当たり判定の並列処理 (塊ごとの処理は最初に1回だけ作る)
+    private final ParallelPhase parallel = new ParallelPhase();
+    private final ParallelPhase.Body moveMissiles = this::moveMissiles;
+    private final ParallelPhase.Body moveEnemies = this::moveEnemies;
+    private final ParallelPhase.Body fireEnemies = this::fireEnemies;
+    private final ParallelPhase.Body moveEnemyMissiles = this::moveEnemyMissiles;
+    private final ParallelPhase.Body findMissileHits = this::findMissileHits;
+
+    private int stage;
+    // このステージの敵機の配置・発射確率・ボス機
+    private StageLayout layout;
+    // このステージの発射確率 (倍率をかけたもの)
+    private double fireRate;
+    private int score = 0;
+    // ミサイルの発射間隔 (ミリ秒、時間はtick数から計算する、発射した時刻は自機ごと)
+    private final long[] missileFinalTick;
+    private int missileInterval;
+    private final boolean[] missileStart;
+    private boolean gameOver = false;
+    private boolean gameClear = false;
+    // ボス機を倒して次のステージへ進む
+    private boolean stageCleared = false;
+    // ステージ開始時のtick数
+    private long stageStartTick;
+    // 「Stage N」・ゲームオーバー・ゲームクリアの表示中はシミュレーションを止める
+    private int displayStage;
+    private int displayGameOver = 50;
+    private int displayGameClear = 50;
+    private long tickCount = 0;
+    // 取ったアイテムの数
+    private int itemsPicked = 0;
+    // 処理時間の計測
+    private FrameProfiler profiler = FrameProfiler.NONE;
+
+    public GameWorld() {
+        this(System.nanoTime(), 1);
+    }
+
+    public GameWorld(long seed, int stage) {
+        this(seed, stage, GameParams.DEFAULT);
+    }
+
+    public GameWorld(long seed, int stage, GameParams params) {
+        this(seed, stage, params, 1);
+    }
+
+    // 協力プレイ (playerCount機の自機、スコアとミサイルの発射間隔は全員で共有する)
+    public GameWorld(long seed, int stage, GameParams params, int playerCount) {
+        if (playerCount < 1 || playerCount > MAX_PLAYERS) {
+            throw new IllegalArgumentException("playerCount: " + playerCount);
+        }
+        this.seed = seed;
+        this.random = new GameRandom(seed);
+        this.params = params;
+        this.missileInterval = params.getMissileInterval();
+        this.players = new Player[playerCount];
+        this.inputs = new int[playerCount];
+        this.missileFinalTick = new long[playerCount];
+        this.missileStart = new boolean[playerCount];
+        Arrays.fill(missileStart, true);
+        startStage(stage);
+    }
+
+    // ステージを初期化する (スコアとミサイルの発射間隔は引き継ぐ)
+    public void startStage(int stage) {
+        this.stage = stage;
+        stageCleared = false;
+        displayStage = 50;
+        enemies.clear();
+        missiles.clear();
+        enemyMissiles.clear();
+        items.clear();
+        boss = null;
+
+        // 自機は横に等間隔で並べる (1人なら中央)
+        for (int p = 0; p < players.length; p++) {
+            players[p] = new Player(Constants.SCREEN_WIDTH * (p + 1) / (players.length + 1), Constants.SCREEN_HEIGHT - imageLoader.getImageHeight(ImageKey.PLAYER) - 10);
+            players[p].setWidth(imageLoader.getImageWidth(ImageKey.PLAYER));
+            players[p].setHeight(imageLoader.getImageHeight(ImageKey.PLAYER));
+        }
+        player = players[localPlayer];
+
+        // 敵機の初期化 (次のステージの配置はこのステージの間に別スレッドで用意しておく)
+        layout = StageLayout.get(stage);
+        fireRate = params.getFireRate(layout);
+        StageLayout.prepare(stage + 1);
+        for (int i = 0; i < layout.getEnemyCount(); i++) {
+            addEnemy(layout.getEnemyX(i), layout.getEnemyY(i), layout.getEnemyKey(i));
+        }
+
+        stageStartTick = tickCount;
+    }
+
+    // tick数からゲーム内の経過時間(ミリ秒)を求める
+    private long elapsedMillis(long fromTick) {
+        return (tickCount - fromTick) * 1000 / Constants.TICK_RATE;
+    }
+
+    // 敵機を追加
+    void addEnemy(int x, int y, ImageKey key) {
+        enemies.add(x, y, imageLoader.getImageWidth(key), imageLoader.getImageHeight(key), layout.getEnemySpeed(), 0, key.ordinal());
+    }
+
+    // 1tick進める (inputはINPUT_*のビットの組み合わせ、協力プレイでは1機目の入力で他の自機は何もしない)
+    public void tick(int input) {
+        inputs[0] = input;
+        tick(inputs);
+    }
+
+    // 自機ごとの入力で1tick進める
+    public void tick(int[] inputs) {
+        tickCount++;
+        // 補間用に前回tickの位置を保存
+        savePositions();
+
+        if (displayStage > 0) {
+            displayStage--;
+            return;
+        }
+        if (gameOver && displayGameOver > 0) {
+            displayGameOver--;
+            return;
+        }
+        if (gameClear && displayGameClear > 0) {
+            displayGameClear--;
+            return;
+        }
+        // ゲームの状態を更新
+        long section = profiler.begin();
+        for (int p = 0; p < players.length; p++) {
+            Player player = players[p];
+            if (!player.isAlive()) {
+                continue;
+            }
+            int input = inputs[p];
+            movePlayer(player, input);
+            if ((input & INPUT_FIRE) != 0) {
+                if (missileStart[p] || elapsedMillis(missileFinalTick[p]) > missileInterval) {
+                    missiles.add(player.getX() + player.getWidth() / 2, player.getY(), imageLoader.getImageWidth(ImageKey.PLAYER_MISSILE), imageLoader.getImageHeight(ImageKey.PLAYER_MISSILE), 0, -Constants.MISSILE_SPEED, ImageKey.PLAYER_MISSILE.ordinal());
+                    missileFinalTick[p] = tickCount;
+                    missileStart[p] = false;
+                }
+            }
+        }
+
+        // 数が多い時は移動・発射・当たり判定を並列に処理する (結果は並列でなくても同じ)
+        boolean parallelTick = enemies.size() + missiles.size() + enemyMissiles.size() >= Constants.PARALLEL_THRESHOLD;
+
+        profiler.end(FrameProfiler.MOVE, section);
+        section = profiler.begin();
+        // アイテムをランダムに生成
+        if (random.nextDouble() < params.getItemChance()) {
+            int x = random.nextInt(Constants.SCREEN_WIDTH);
+            int type = random.nextInt(4);
+            ImageKey key = null;
+            ItemType itemType = null;
+            switch(type) {
+                case 0:
+                    itemType = ItemType.SCORE_UP;
+                    key = ImageKey.ITEM1;
+                    break;
+                case 1:
+                    itemType = ItemType.LIFE_UP;
+                    key = ImageKey.ITEM2;
                     break;
-                case 5:
-                    percentange = 0.0050;
+                case 2:
+                    itemType = ItemType.SPEED_UP;
+                    key = ImageKey.ITEM3;
                     break;
-                case 6:
-                    percentange = 0.0055;
+                case 3:
+                    itemType = ItemType.MISSILE_UPGRADE;
+                    key = ImageKey.ITEM4;
                     break;
             }
-            // 一定の確率でミサイルを発射
-            if (Math.random() < percentange) {
-                enemyMissiles.add(new EnemyMissile(enemy.getX() + imageLoader.getImageWidth(ImageKey.ENEMY1) / 2, enemy.getY() + imageLoader.getImageHeight(ImageKey.ENEMY1)));
+            int y = -imageLoader.getImageHeight(key);
+            // アイテムの当たり判定は左上の点で行う (幅・高さは0)
+            int index = items.add(x, y, 0, 0, 0, Constants.ITEM_SPEED, key.ordinal());
+            if (index >= 0) {
+                items.type[index] = itemType.ordinal();
+            }
+        }
+
+        profiler.end(FrameProfiler.FIRE, section);
+        section = profiler.begin();
+        // アイテムを上から下に移動 (画面外のものは後でまとめて削除する)
+        kernel.move(items.y, items.vy, items.flags, EntityStore.ALIVE, 0, items.size(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        profiler.end(FrameProfiler.MOVE, section);
+        section = profiler.begin();
+        // 画面外に出たミサイルを削除 (末尾と入れ替えて詰める)
+        for (int i = missiles.size() - 1; i >= 0; i--) {
+            if (!missiles.isAlive(i)) {
+                missiles.removeAt(i);
+            }
+        }
+
+        profiler.end(FrameProfiler.REMOVE, section);
+        section = profiler.begin();
+        // ミサイルの移動 (画面の上に出たら消す)
+        parallel.run(missiles.size(), moveMissiles, parallelTick);
+
+        // 敵機の移動
+        parallel.run(enemies.size(), moveEnemies, parallelTick);
+
+        profiler.end(FrameProfiler.MOVE, section);
+        section = profiler.begin();
+        // 敵機のミサイルの発射
+        // 発射する敵機を塊ごとに集めてから、敵機の順番にミサイルを追加する
+        parallel.run(enemies.size(), fireEnemies, parallelTick);
+        for (int c = 0; c < ParallelPhase.chunkCount(enemies.size()); c++) {
+            IntList firing = parallel.buffer(c);
+            for (int k = 0; k < firing.size(); k++) {
+                int i = firing.get(k);
+                addEnemyMissile(enemies.x[i] + imageLoader.getImageWidth(ImageKey.ENEMY1) / 2, enemies.y[i] + imageLoader.getImageHeight(ImageKey.ENEMY1));
+            }
+        }
+
+        // ボス機のミサイルの発射
+        // このメソッド内でボス機のミサイルの発射のロジックを実装
+        if (boss != null && boss.isAlive() && boss.getBang() == 0) {
+            ImageKey key = layout.getBossKey();
+            if (random.nextDouble() < fireRate) {
+                addEnemyMissile(boss.getX() + imageLoader.getImageWidth(key) / 2, boss.getY() + imageLoader.getImageHeight(key));
+            }
+        }
+
+        profiler.end(FrameProfiler.FIRE, section);
+        section = profiler.begin();
+        // 画面外に出た敵機のミサイルを削除
+        for (int i = enemyMissiles.size() - 1; i >= 0; i--) {
+            if (!enemyMissiles.isAlive(i)) {
+                enemyMissiles.removeAt(i);
+            }
+        }
+
+        profiler.end(FrameProfiler.REMOVE, section);
+        section = profiler.begin();
+        // 敵機のミサイルの移動 (画面の下に出たら消す)
+        parallel.run(enemyMissiles.size(), moveEnemyMissiles, parallelTick);
+
+        // ボス機の移動
+        if (boss != null && boss.isAlive() && boss.getBang() == 0) {
+            boss.move();
+        }
+
+        profiler.end(FrameProfiler.MOVE, section);
+        section = profiler.begin();
+        // 移動が終わった全オブジェクトを当たり判定のグリッドに登録
+        registerCollisions();
+
+        // 敵機のミサイルと自機の当たり判定
+        int count;
+        for (Player player : players) {
+            count = collisionWorld.query(CollisionWorld.LAYER_ENEMY_MISSILE, player.getX(), player.getY(), player.getWidth(), player.getHeight());
+            for (int i = 0; i < count; i++) {
+                int missile = collisionWorld.getResult(i);
+                if (enemyMissiles.isAlive(missile) && enemyMissiles.overlaps(missile, player.getX(), player.getY(), player.getWidth(), player.getHeight())) {
+                    enemyMissiles.kill(missile);
+                    player.hit();
+                }
+            }
+        }
+
+        // 衝突判定
+        // ミサイルごとに当たった敵機・ボス機を塊ごとに集めてから、ミサイルの順番に反映する
+        // (同じ敵機に2発当たった場合は、順番が先のミサイルだけが倒したことになる)
+        parallel.run(missiles.size(), findMissileHits, parallelTick);
+        for (int c = 0; c < ParallelPhase.chunkCount(missiles.size()); c++) {
+            IntList hits = parallel.buffer(c);
+            for (int k = 0; k < hits.size(); k += 2) {
+                int m = hits.get(k);
+                int enemy = hits.get(k + 1);
+                if (enemy < 0) {
+                    missiles.kill(m);
+                    boss.hit();
+                    int time2 = (int) elapsedMillis(stageStartTick);
+                    addScore(1000 - time2 / 100);
+                } else if (enemies.isAlive(enemy)) {
+                    missiles.kill(m);
+                    // 敵機が攻撃を受けた時の処理
+                    enemies.kill(enemy);
+                    enemies.bang[enemy] = 50;
+                    int time2 = (int) elapsedMillis(stageStartTick);
+                    addScore(1000 - time2 / 100);
+                }
+            }
+        }
+
+        for (Player player : players) {
+            // 自機が敵機に当たったかどうかの判定
+            count = collisionWorld.query(CollisionWorld.LAYER_ENEMY, player.getX(), player.getY(), player.getWidth(), player.getHeight());
+            for (int i = 0; i < count; i++) {
+                int enemy = collisionWorld.getResult(i);
+                if (player.collidesWithEnemy(enemies.x[enemy], enemies.y[enemy], enemies.width[enemy], enemies.height[enemy])) {
+                    player.setLife(1);
+                    player.hit();
+                }
+            }
+
+            // 自機がボス機に当たったかどうかの判定
+            if (collisionWorld.query(CollisionWorld.LAYER_BOSS, player.getX(), player.getY(), player.getWidth(), player.getHeight()) > 0 && player.collidesWith(boss)) {
+                player.hit();
+                boss.hit();
+            }
+        }
+
+        profiler.end(FrameProfiler.COLLISION, section);
+        section = profiler.begin();
+        // 画面外に出た敵機と、爆発が終わった敵機を削除
+        for (int i = enemies.size() - 1; i >= 0; i--) {
+            if (enemies.y[i] > Constants.SCREEN_HEIGHT || (!enemies.isAlive(i) && enemies.bang[i] == 0)) {
+                enemies.removeAt(i);
+            }
+        }
+
+        profiler.end(FrameProfiler.REMOVE, section);
+        // 敵機が全滅したかどうかの判定
+        if (enemies.size() == 0 && boss == null) {
+            // ボス機の出現
+            ImageKey key = layout.getBossKey();
+            boss = new Boss(Constants.SCREEN_WIDTH / 2, layout.getBossY(), key, layout.getBossLife(), layout.getBossSpeedX(), layout.getBossSpeedY());
+            boss.setX(Constants.SCREEN_WIDTH / 2 - imageLoader.getImageWidth(key) / 2);
+            boss.setHeight(imageLoader.getImageHeight(key));
+            boss.setWidth(imageLoader.getImageWidth(key));
+        }
+
+        // 自機が全てやられたかどうかの判定
+        if (!isAnyPlayerAlive()) {
+            // ゲームオーバー (ハイスコアの更新は画面側で行う)
+            gameOver = true;
+        }
+
+        // ボス機がやられたかどうかの判定
+        if (boss != null && !boss.isAlive() && boss.getBang() == 0) {
+            if (stage < StageLayout.getStageCount()) {
+                int time2 = (int) elapsedMillis(stageStartTick);
+                addScore(6000 - time2 / 100);
+
+                // このtickの処理が終わったら次のステージへ
+                stageCleared = true;
+            } else {
+                // ゲームクリア (ハイスコアの更新は画面側で行う)
+                gameClear = true;
+            }
+        }
+
+
+        section = profiler.begin();
+        // アイテムが自機に当たったかどうかの判定
+        // アイテムと自機はグリッドへの登録後に移動していないので、そのまま使える
+        for (Player player : players) {
+            count = collisionWorld.query(CollisionWorld.LAYER_ITEM, player.getX(), player.getY(), player.getWidth(), player.getHeight());
+            for (int i = 0; i < count; i++) {
+                int item = collisionWorld.getResult(i);
+                if(!items.isAlive(item)) {
+                    continue;
+                }
+                if (player.collidesWithItem(items.x[item], items.y[item], items.width[item], items.height[item])) {
+                    switch(ITEM_TYPES[items.type[item]]) {
+                        case SCORE_UP:
+                            addScore(2000);
+                            break;
+                        case LIFE_UP:
+                            player.setLife(player.getLife() + 1);
+                            break;
+                        case SPEED_UP:
+                            player.setSpeed(player.getSpeed() + 1);
+                            break;
+                        case MISSILE_UPGRADE:
+                            missileInterval -= 100;
+                            break;
+                    }
+                    items.kill(item);
+                    itemsPicked++;
+                }
+            }
+        }
+
+        profiler.end(FrameProfiler.COLLISION, section);
+        section = profiler.begin();
+        // 画面外に出たアイテムと、取得済みのアイテムを削除
+        // (当たり判定のグリッドは番号で登録しているので、アイテムの判定が終わってから詰める)
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.y[i] > Constants.SCREEN_HEIGHT || !items.isAlive(i)) {
+                items.removeAt(i);
+            }
+        }
+
+        profiler.end(FrameProfiler.REMOVE, section);
+        // 爆発アニメーションのカウントダウン
+        // 描画のフレームレートに依存しないようにupdateで減らす
+        for (Player player : players) {
+            if (player.getBang() > 0 && !player.isAlive()) {
+                player.setBang(player.getBang() - 1);
+            }
+        }
+        for (int i = 0; i < enemies.size(); i++) {
+            if (!enemies.isAlive(i) && enemies.bang[i] > 0) {
+                enemies.bang[i]--;
+            }
+        }
+        if (boss != null && boss.getBang() > 0) {
+            boss.setBang(boss.getBang() - 1);
+        }
+
+        if (profiler.isActive()) {
+            profiler.setEntityCounts(enemies.size(), missiles.size(), enemyMissiles.size(), items.size());
+        }
+
+        if (stageCleared) {
+            // 次のステージへ
+            startStage(stage + 1);
+        }
+    }
+
+    private void addScore(int value) {
+        score += value;
+    }
+
+    // 入力に合わせて自機を左右に動かす (画面の端では止まる、クライアントの予測でも同じ処理を使う)
+    static void movePlayer(Player player, int input) {
+        if ((input & INPUT_LEFT) != 0) {
+            if (player.getX() > 0) {
+                player.moveLeft();
+            }
+        }
+        if ((input & INPUT_RIGHT) != 0) {
+            if (player.getX() < Constants.SCREEN_WIDTH - player.getWidth()) {
+                player.moveRight();
+            }
+        }
+    }
+
+    private boolean isAnyPlayerAlive() {
+        for (Player player : players) {
+            if (player.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 以下は並列に処理する塊ごとの処理 (from～to-1番目だけに書き込み、結果はparallel.buffer(chunk)に入れる)
+
+    private void moveMissiles(int chunk, int from, int to) {
+        kernel.move(missiles.y, missiles.vy, missiles.flags, EntityStore.ALIVE, from, to, 0, Integer.MAX_VALUE);
+    }
+
+    private void moveEnemyMissiles(int chunk, int from, int to) {
+        kernel.move(enemyMissiles.y, enemyMissiles.vy, enemyMissiles.flags, EntityStore.ALIVE, from, to, Integer.MIN_VALUE, Constants.SCREEN_HEIGHT);
+    }
+
+    // 左端と右端に到達したら下に移動、左右の移動方向を反転
+    private void moveEnemies(int chunk, int from, int to) {
+        int[] enemyX = enemies.x;
+        int[] enemyY = enemies.y;
+        int[] enemyVx = enemies.vx;
+        int enemyDrop = layout.getEnemyDrop();
+        for (int i = from; i < to; i++) {
+            if (enemies.bang[i] > 0) {
+                continue;
+            }
+            if (enemyX[i] < 0 || enemyX[i] > Constants.SCREEN_WIDTH - enemies.width[i]) {
+                enemyY[i] += enemyDrop;
+                enemyVx[i] = -enemyVx[i];
+            }
+            enemyX[i] += enemyVx[i];
+        }
+    }
+
+    // 一定の確率でミサイルを発射する敵機を集める
+    // 乱数はtick数と敵機の番号から決めるので、処理する順番によらない
+    private void fireEnemies(int chunk, int from, int to) {
+        IntList firing = parallel.buffer(chunk);
+        for (int i = from; i < to; i++) {
+            if (!enemies.isAlive(i) || enemies.bang[i] > 0) {
+                continue;
+            }
+            if (GameRandom.hashDouble(seed, tickCount, i) < fireRate) {
+                firing.add(i);
+            }
+        }
+    }
+
+    // ミサイルと重なっている敵機 (この時点で生きているもの) とボス機を、(ミサイル, 敵機の番号またはボス機は-1) の順に集める
+    private void findMissileHits(int chunk, int from, int to) {
+        IntList hits = parallel.buffer(chunk);
+        CollisionWorld.Query query = parallel.query(chunk);
+        for (int m = from; m < to; m++) {
+            int missileX = missiles.x[m];
+            int missileY = missiles.y[m];
+            int missileWidth = missiles.width[m];
+            int missileHeight = missiles.height[m];
+            // ミサイルと重なる可能性のある敵機だけを調べる (登録順)
+            int found = collisionWorld.query(query, CollisionWorld.LAYER_ENEMY, missileX, missileY, missileWidth, missileHeight);
+            for (int i = 0; i < found; i++) {
+                int enemy = collisionWorld.getResult(query, i);
+                if (enemies.isAlive(enemy) && enemies.overlaps(enemy, missileX, missileY, missileWidth, missileHeight)) {
+                    hits.add(m);
+                    hits.add(enemy);
+                }
+            }
+            if (collisionWorld.query(query, CollisionWorld.LAYER_BOSS, missileX, missileY, missileWidth, missileHeight) > 0
+                    && CollisionWorld.overlaps(missileX, missileY, missileWidth, missileHeight, boss.getX(), boss.getY(), boss.getWidth(), boss.getHeight())) {
+                hits.add(m);
+                hits.add(-1);
+            }
+        }
+    }
+
+    // 敵機のミサイルを追加 (当たり判定は先端の点で行う)
+    void addEnemyMissile(int x, int y) {
+        enemyMissiles.add(x, y, 0, 0, 0, Constants.ENEMY_MISSILE_SPEED, ImageKey.ENEMY_MISSILE.ordinal());
+    }
+
+    // 全オブジェクトを当たり判定のグリッドに登録し直す
+    private void registerCollisions() {
+        collisionWorld.clear();
+        collisionWorld.addAll(CollisionWorld.LAYER_ENEMY, enemies);
+        if (boss != null) {
+            collisionWorld.add(CollisionWorld.LAYER_BOSS, 0, boss.getX(), boss.getY(), boss.getWidth(), boss.getHeight());
+        }
+        collisionWorld.addAll(CollisionWorld.LAYER_MISSILE, missiles);
+        collisionWorld.addAll(CollisionWorld.LAYER_ENEMY_MISSILE, enemyMissiles);
+        collisionWorld.addAll(CollisionWorld.LAYER_ITEM, items);
+    }
+
+    // 全オブジェクトの現在位置を前回位置として保存
+    private void savePositions() {
+        for (Player player : players) {
+            player.savePosition();
+        }
+        enemies.savePositions();
+        if (boss != null) {
+            boss.savePosition();
+        }
+        missiles.savePositions();
+        enemyMissiles.savePositions();
+        items.savePositions();
+    }
+
+    // 状態のハッシュ値 (リプレイが同じ結果になったかの確認用)
+    public long stateHash() {
+        long hash = 17;
+        hash = hash * 31 + tickCount;
+        hash = hash * 31 + stage;
+        hash = hash * 31 + score;
+        hash = hash * 31 + missileInterval;
+        for (Player player : players) {
+            hash = hash * 31 + player.getX();
+            hash = hash * 31 + player.getY();
+            hash = hash * 31 + player.getLife();
+            hash = hash * 31 + player.getSpeed();
+        }
+        if (boss != null) {
+            hash = hash * 31 + boss.getX();
+            hash = hash * 31 + boss.getY();
+            hash = hash * 31 + boss.getBang();
+        }
+        EntityStore[] stores = {enemies, missiles, enemyMissiles, items};
+        for (EntityStore store : stores) {
+            hash = hash * 31 + store.size();
+            for (int i = 0; i < store.size(); i++) {
+                hash = hash * 31 + store.x[i];
+                hash = hash * 31 + store.y[i];
+                hash = hash * 31 + store.flags[i];
+            }
+        }
+        return hash;
+    }
+
+    // ゲームオーバー・ゲームクリアの表示が終わり、タイトルに戻れる状態か
+    public boolean isWaitingForContinue() {
+        return (gameOver && displayGameOver == 0) || (gameClear && displayGameClear == 0);
+    }
+
+    // getPlayer (この端末で操作する自機)
+    public Player getPlayer() {
+        return player;
+    }
+
+    // 協力プレイのp番目の自機
+    public Player getPlayer(int p) {
+        return players[p];
+    }
+
+    // getPlayerCount
+    public int getPlayerCount() {
+        return players.length;
+    }
+
+    // この端末で操作する自機を決める (協力プレイのクライアント用)
+    void setLocalPlayer(int p) {
+        localPlayer = p;
+        player = players[p];
+    }
+
+    // 協力プレイで送る状態を取り出す (サーバー用、自機ごとの処理済みの入力の番号はサーバーが入れる)
+    void capture(WorldSnapshot snapshot) {
+        snapshot.clear();
+        int row = snapshot.addRow(WorldSnapshot.HEADER);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.TICK, row, (int) tickCount);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.STAGE, row, stage);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.SCORE, row, score);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_STAGE, row, displayStage);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_GAME_OVER, row, displayGameOver);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_GAME_CLEAR, row, displayGameClear);
+        snapshot.set(WorldSnapshot.HEADER, WorldSnapshot.STATE, row, (gameOver ? 1 : 0) | (gameClear ? 2 : 0));
+        for (Player p : players) {
+            row = snapshot.addRow(WorldSnapshot.PLAYERS);
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_X, row, p.getX());
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_Y, row, p.getY());
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_LIFE, row, p.getLife());
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_SPEED, row, p.getSpeed());
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_BANG, row, p.getBang());
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_ALIVE, row, p.isAlive() ? 1 : 0);
+        }
+        if (boss != null) {
+            row = snapshot.addRow(WorldSnapshot.BOSS);
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_X, row, boss.getX());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_Y, row, boss.getY());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_KEY, row, boss.getKey().ordinal());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_WIDTH, row, boss.getWidth());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_HEIGHT, row, boss.getHeight());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_BANG, row, boss.getBang());
+            snapshot.set(WorldSnapshot.BOSS, WorldSnapshot.BOSS_ALIVE, row, boss.isAlive() ? 1 : 0);
+        }
+        captureStore(snapshot, WorldSnapshot.ENEMIES, enemies);
+        captureStore(snapshot, WorldSnapshot.MISSILES, missiles);
+        captureStore(snapshot, WorldSnapshot.ENEMY_MISSILES, enemyMissiles);
+        captureStore(snapshot, WorldSnapshot.ITEMS, items);
+    }
+
+    private static void captureStore(WorldSnapshot snapshot, int table, EntityStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            int row = snapshot.addRow(table);
+            snapshot.set(table, WorldSnapshot.ENTITY_X, row, store.x[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_Y, row, store.y[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_VX, row, store.vx[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_VY, row, store.vy[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_WIDTH, row, store.width[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_HEIGHT, row, store.height[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_FLAGS, row, store.flags[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_SPRITE, row, store.sprite[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_TYPE, row, store.type[i]);
+            snapshot.set(table, WorldSnapshot.ENTITY_BANG, row, store.bang[i]);
+        }
+    }
+
+    // サーバーから届いた状態にする (クライアント用、このGameWorldはシミュレーションしない)
+    // 補間用の前回位置は、自機とボス機は今の位置、敵機・弾・アイテムは速度から逆算した位置にする
+    // restoreに使える状態か (ネットワークから届いた値で配列の範囲外を引かないよう、番号の範囲を確かめる)
+    boolean canRestore(WorldSnapshot snapshot) {
+        if (snapshot.getRows(WorldSnapshot.HEADER) != 1 || snapshot.getRows(WorldSnapshot.PLAYERS) != players.length
+                || snapshot.getRows(WorldSnapshot.BOSS) > 1) {
+            return false;
+        }
+        int newStage = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.STAGE, 0);
+        if (newStage < 1 || newStage > StageLayout.getStageCount()) {
+            return false;
+        }
+        if (snapshot.getRows(WorldSnapshot.BOSS) == 1 && !isIndex(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_KEY, 0), IMAGE_KEYS.length)) {
+            return false;
+        }
+        for (int table = WorldSnapshot.ENEMIES; table <= WorldSnapshot.ITEMS; table++) {
+            for (int row = 0; row < snapshot.getRows(table); row++) {
+                if (!isIndex(snapshot.get(table, WorldSnapshot.ENTITY_SPRITE, row), IMAGE_KEYS.length)) {
+                    return false;
+                }
+                if (table == WorldSnapshot.ITEMS && !isIndex(snapshot.get(table, WorldSnapshot.ENTITY_TYPE, row), ITEM_TYPES.length)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIndex(int value, int length) {
+        return value >= 0 && value < length;
+    }
+
+    // canRestoreで確かめた状態を反映する
+    void restore(WorldSnapshot snapshot) {
+        tickCount = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.TICK, 0);
+        int newStage = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.STAGE, 0);
+        if (newStage != stage) {
+            stage = newStage;
+            layout = StageLayout.get(stage);
+        }
+        score = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.SCORE, 0);
+        displayStage = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_STAGE, 0);
+        displayGameOver = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_GAME_OVER, 0);
+        displayGameClear = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.DISPLAY_GAME_CLEAR, 0);
+        int state = snapshot.get(WorldSnapshot.HEADER, WorldSnapshot.STATE, 0);
+        gameOver = (state & 1) != 0;
+        gameClear = (state & 2) != 0;
+        for (int p = 0; p < players.length && p < snapshot.getRows(WorldSnapshot.PLAYERS); p++) {
+            Player ship = players[p];
+            ship.savePosition();
+            ship.setX(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_X, p));
+            ship.setY(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_Y, p));
+            ship.setLife(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_LIFE, p));
+            ship.setSpeed(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_SPEED, p));
+            ship.setBang(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_BANG, p));
+            ship.setAlive(snapshot.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_ALIVE, p) != 0);
+        }
+        if (snapshot.getRows(WorldSnapshot.BOSS) == 0) {
+            boss = null;
+        } else {
+            ImageKey key = IMAGE_KEYS[snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_KEY, 0)];
+            if (boss == null || boss.getKey() != key) {
+                boss = new Boss(0, 0, key, 1, 0, 0);
+            }
+            boss.savePosition();
+            boss.setX(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_X, 0));
+            boss.setY(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_Y, 0));
+            boss.setWidth(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_WIDTH, 0));
+            boss.setHeight(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_HEIGHT, 0));
+            boss.setBang(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_BANG, 0));
+            boss.setAlive(snapshot.get(WorldSnapshot.BOSS, WorldSnapshot.BOSS_ALIVE, 0) != 0);
+        }
+        restoreStore(snapshot, WorldSnapshot.ENEMIES, enemies);
+        restoreStore(snapshot, WorldSnapshot.MISSILES, missiles);
+        restoreStore(snapshot, WorldSnapshot.ENEMY_MISSILES, enemyMissiles);
+        restoreStore(snapshot, WorldSnapshot.ITEMS, items);
+    }
+
+    private static void restoreStore(WorldSnapshot snapshot, int table, EntityStore store) {
+        store.clear();
+        for (int row = 0; row < snapshot.getRows(table); row++) {
+            int x = snapshot.get(table, WorldSnapshot.ENTITY_X, row);
+            int y = snapshot.get(table, WorldSnapshot.ENTITY_Y, row);
+            int vx = snapshot.get(table, WorldSnapshot.ENTITY_VX, row);
+            int vy = snapshot.get(table, WorldSnapshot.ENTITY_VY, row);
+            int i = store.add(x, y, snapshot.get(table, WorldSnapshot.ENTITY_WIDTH, row), snapshot.get(table, WorldSnapshot.ENTITY_HEIGHT, row),
+                    vx, vy, snapshot.get(table, WorldSnapshot.ENTITY_SPRITE, row));
+            if (i < 0) {
+                return;
+            }
+            store.flags[i] = snapshot.get(table, WorldSnapshot.ENTITY_FLAGS, row);
+            store.type[i] = snapshot.get(table, WorldSnapshot.ENTITY_TYPE, row);
+            store.bang[i] = snapshot.get(table, WorldSnapshot.ENTITY_BANG, row);
+            if (store.isAlive(i)) {
+                store.prevX[i] = x - vx;
+                store.prevY[i] = y - vy;
+            }
+        }
+    }
+
+    // 状態が届かなかったtickは、敵機・弾・アイテムをそれぞれの速度で進めておく (次に届いた状態で正しい位置に戻る)
+    void extrapolate() {
+        savePositions();
+        extrapolate(enemies);
+        extrapolate(missiles);
+        extrapolate(enemyMissiles);
+        extrapolate(items);
+    }
+
+    private static void extrapolate(EntityStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            if (store.isAlive(i)) {
+                store.x[i] += store.vx[i];
+                store.y[i] += store.vy[i];
+            }
+        }
+    }
+
+    // getBoss
+    public Boss getBoss() {
+        return boss;
+    }
+
+    // getEnemies
+    public EntityStore getEnemies() {
+        return enemies;
+    }
+
+    // getMissiles
+    public EntityStore getMissiles() {
+        return missiles;
+    }
+
+    // getEnemyMissiles
+    public EntityStore getEnemyMissiles() {
+        return enemyMissiles;
+    }
+
+    // getItems
+    public EntityStore getItems() {
+        return items;
+    }
+
+    // getStage
+    public int getStage() {
+        return stage;
+    }
+
+    // getScore
+    public int getScore() {
+        return score;
+    }
+
+    // isGameOver
+    public boolean isGameOver() {
+        return gameOver;
+    }
+
+    // isGameClear
+    public boolean isGameClear() {
+        return gameClear;
+    }
+
+    // getDisplayStage
+    public int getDisplayStage() {
+        return displayStage;
+    }
+
+    // getMissileInterval
+    public int getMissileInterval() {
+        return missileInterval;
+    }
+
+    // getTickCount
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    // getSeed
+    public long getSeed() {
+        return seed;
+    }
+
+    // getItemsPicked
+    public int getItemsPicked() {
+        return itemsPicked;
+    }
+
+    // setProfiler
+    public void setProfiler(FrameProfiler profiler) {
+        this.profiler = profiler;
+    }
+}
+
+// ステージの敵機の配置・発射確率・ボス機
+// 作った後は変更しないので、別スレッドで用意したものをそのまま共有して使い回す
+final class StageLayout {
+    // 表にないステージ (敵機もボス機もいない)
+    static final StageLayout EMPTY = new StageLayout(0.004, Constants.ENEMY_SPEED, 20, new int[0], new int[0], new ImageKey[0], null, 150, 10, 5, 5);
+
+    private final double fireRate;
+    private final int enemySpeed;
+    private final int enemyDrop;
+    private final int[] enemyX;
+    private final int[] enemyY;
+    private final ImageKey[] enemyKeys;
+    private final ImageKey bossKey;
+    private final int bossY;
+    private final int bossLife;
+    private final int bossSpeedX;
+    private final int bossSpeedY;
+
+    StageLayout(double fireRate, int enemySpeed, int enemyDrop, int[] enemyX, int[] enemyY, ImageKey[] enemyKeys,
+            ImageKey bossKey, int bossY, int bossLife, int bossSpeedX, int bossSpeedY) {
+        this.fireRate = fireRate;
+        this.enemySpeed = enemySpeed;
+        this.enemyDrop = enemyDrop;
+        this.enemyX = enemyX;
+        this.enemyY = enemyY;
+        this.enemyKeys = enemyKeys;
+        this.bossKey = bossKey;
+        this.bossY = bossY;
+        this.bossLife = bossLife;
+        this.bossSpeedX = bossSpeedX;
+        this.bossSpeedY = bossSpeedY;
+    }
+
+    // ステージの数 (stages/stage1.txt から続く番号のファイルの数)
+    public static int getStageCount() {
+        return StageTable.getInstance().getStageCount();
+    }
+
+    // 別スレッドで用意を始める (「Stage N」の表示中などに、次のステージの分を先に用意しておく)
+    public static void prepare(int stage) {
+        StageTable.getInstance().prepare(stage);
+    }
+
+    // 用意ができていなければ待たずにその場で作る
+    public static StageLayout get(int stage) {
+        return StageTable.getInstance().get(stage);
+    }
+
+    // 発射確率 (1tickあたり、GameParamsの倍率をかける前)
+    public double getFireRate() {
+        return fireRate;
+    }
+
+    // getEnemySpeed
+    public int getEnemySpeed() {
+        return enemySpeed;
+    }
+
+    // 端で折り返す時に下がる量
+    public int getEnemyDrop() {
+        return enemyDrop;
+    }
+
+    // 敵機の数
+    public int getEnemyCount() {
+        return enemyX.length;
+    }
+
+    public int getEnemyX(int i) {
+        return enemyX[i];
+    }
+
+    public int getEnemyY(int i) {
+        return enemyY[i];
+    }
+
+    public ImageKey getEnemyKey(int i) {
+        return enemyKeys[i];
+    }
+
+    // getBossKey
+    public ImageKey getBossKey() {
+        return bossKey;
+    }
+
+    // getBossY
+    public int getBossY() {
+        return bossY;
+    }
+
+    // getBossLife
+    public int getBossLife() {
+        return bossLife;
+    }
+
+    // getBossSpeedX
+    public int getBossSpeedX() {
+        return bossSpeedX;
+    }
+
+    // getBossSpeedY
+    public int getBossSpeedY() {
+        return bossSpeedY;
+    }
+}
+
+// ステージの表 (stages/stages.bin)
+// 起動時には見出しだけを読み、各ステージは初めて使う時に読み出す
+// テキストのステージファイルの方が新しければ、読む前にStageCompilerで作り直す
+class StageTable {
+    public static final File DIRECTORY = new File("./stages");
+
+    private final ByteBuffer data;
+    // 表の中の画像の番号からImageKeyへ
+    private final ImageKey[] keys;
+    // ステージごとの位置 (stage - 1 番目から stage 番目まで)
+    private final int[] offsets;
+    // ステージごとの用意 (まだ用意していないステージはnull)
+    private final AtomicReferenceArray<CompletableFuture<StageLayout>> layouts;
+
+    // 初めて使われた時に1回だけ読み込む
+    private static class Holder {
+        static final StageTable INSTANCE = new StageTable(DIRECTORY);
+    }
+
+    public static StageTable getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    StageTable(File directory) {
+        File file = new File(directory, StageCompiler.TABLE_FILE);
+        try {
+            if (StageCompiler.isStale(directory)) {
+                StageCompiler.compile(directory);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.getInt() != StageCompiler.MAGIC || buffer.get() != StageCompiler.VERSION) {
+                // 古い形式の表は作り直す
+                StageCompiler.compile(directory);
+                buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                buffer.getInt();
+                buffer.get();
             }
-        });
+            int stageCount = buffer.getShort();
+            keys = new ImageKey[buffer.getShort()];
+            for (int i = 0; i < keys.length; i++) {
+                byte[] name = new byte[buffer.get()];
+                buffer.get(name);
+                keys[i] = ImageKey.valueOf(new String(name, StandardCharsets.US_ASCII));
+            }
+            offsets = new int[stageCount + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getInt();
+            }
+            data = buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot load stages from " + file, e);
+        }
+        layouts = new AtomicReferenceArray<>(offsets.length);
+    }
 
-        // ボス機のミサイルの発射
-        // このメソッド内でボス機のミサイルの発射のロジックを実装
-        if (boss != null && boss.isAlive() && boss.getBang() == 0) {
-            double percentange = 0.004;
-            switch (Constants.stage) {
-                case 1:
-                    percentange = 0.003;
-                    break;
-                case 2:
-                    percentange = 0.0035;
-                    break;
-                case 3:
-                    percentange = 0.0040;
-                    break;
-                case 4:
-                    percentange = 0.0045;
-                    break;
-                case 5:
-                    percentange = 0.0050;
-                    break;
-                case 6:
-                    percentange = 0.0055;
-                    break;
+    // getStageCount
+    public int getStageCount() {
+        return offsets.length - 1;
+    }
+
+    // 別スレッドで読み出しを始める
+    public void prepare(int stage) {
+        if (stage < 1 || stage > getStageCount() || layouts.get(stage) != null) {
+            return;
+        }
+        CompletableFuture<StageLayout> future = new CompletableFuture<>();
+        if (layouts.compareAndSet(stage, null, future)) {
+            ForkJoinPool.commonPool().execute(() -> future.complete(read(stage)));
+        }
+    }
+
+    // 用意ができていなければ待たずにその場で読み出す (内容は同じなので、別スレッドの方は結果を捨てるだけ)
+    public StageLayout get(int stage) {
+        if (stage < 1 || stage > getStageCount()) {
+            return StageLayout.EMPTY;
+        }
+        CompletableFuture<StageLayout> future = layouts.get(stage);
+        StageLayout layout = future == null ? null : future.getNow(null);
+        if (layout == null) {
+            layout = read(stage);
+            if (future == null) {
+                layouts.compareAndSet(stage, null, CompletableFuture.completedFuture(layout));
+            } else {
+                future.complete(layout);
+            }
+        }
+        return layout;
+    }
+
+    // 1ステージ分を読み出す (形式はStageCompiler.writeStageを参照)
+    private StageLayout read(int stage) {
+        ByteBuffer in = data.duplicate();
+        in.position(offsets[stage - 1]);
+        double fireRate = in.getDouble();
+        int enemySpeed = in.getShort();
+        int enemyDrop = in.getShort();
+        int bossKey = in.get();
+        int bossY = in.getShort();
+        int bossLife = in.getShort();
+        int bossSpeedX = in.getShort();
+        int bossSpeedY = in.getShort();
+        int count = in.getShort() & 0xFFFF;
+        int[] x = new int[count];
+        int[] y = new int[count];
+        ImageKey[] enemyKeys = new ImageKey[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = in.getShort();
+            y[i] = in.getShort();
+            enemyKeys[i] = keys[in.get() & 0xFF];
+        }
+        return new StageLayout(fireRate, enemySpeed, enemyDrop, x, y, enemyKeys,
+                bossKey < 0 ? null : keys[bossKey], bossY, bossLife, bossSpeedX, bossSpeedY);
+    }
+}
+
+// テキストのステージファイル (stages/stage1.txt, stage2.txt, ...) を1つの表にまとめる
+// 1行に1項目で、#から後はコメント
+//   fireRate 確率             敵機とボス機のミサイル発射確率 (1tickあたり)
+//   enemySpeed 速さ           敵機の横の速さ
+//   enemyDrop 量              敵機が端で折り返す時に下がる量
+//   grid 列数 間隔 画像...     行ごとの画像で敵機を格子に並べる (左上は(間隔, 間隔)、列ごとに上の行から)
+//   enemy x y 画像            敵機を1機置く
+//   boss 画像                 ボス機の画像
+//   bossY y / bossLife 耐久力 / bossSpeed 横 縦
+// 敵機はファイルに書いた順に並ぶ (敵機の順番は乱数を引く順番になる)
+//
+// java StageCompiler [ディレクトリ]
+class StageCompiler {
+    public static final int MAGIC = 0x414B5354; // "AKST"
+    public static final byte VERSION = 1;
+    public static final String TABLE_FILE = "stages.bin";
+
+    public static void main(String[] args) throws IOException {
+        File directory = args.length > 0 ? new File(args[0]) : StageTable.DIRECTORY;
+        int count = compile(directory);
+        System.out.println(count + " stages -> " + new File(directory, TABLE_FILE));
+    }
+
+    // ステージファイル (番号順、1から続く分だけ)
+    static List<File> sourceFiles(File directory) {
+        List<File> files = new ArrayList<>();
+        for (int stage = 1; ; stage++) {
+            File file = new File(directory, "stage" + stage + ".txt");
+            if (!file.isFile()) {
+                return files;
+            }
+            files.add(file);
+        }
+    }
+
+    // 表がないか、どれかのステージファイルより古ければ作り直す
+    static boolean isStale(File directory) {
+        File table = new File(directory, TABLE_FILE);
+        if (!table.isFile()) {
+            return true;
+        }
+        for (File file : sourceFiles(directory)) {
+            if (file.lastModified() > table.lastModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 表を作って書き込み、ステージの数を返す
+    // 読み込み中の他のプロセスがあっても壊れないよう、一時ファイルに書いてから置き換える
+    static int compile(File directory) throws IOException {
+        List<File> files = sourceFiles(directory);
+        if (files.isEmpty()) {
+            throw new IOException("no stage files in " + directory);
+        }
+        List<String> keyNames = new ArrayList<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int[] offsets = new int[files.size() + 1];
+        for (int i = 0; i < files.size(); i++) {
+            writeStage(files.get(i), keyNames, out);
+            offsets[i + 1] = out.size();
+        }
+
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(table);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.writeShort(files.size());
+        header.writeShort(keyNames.size());
+        int headerSize = 4 + 1 + 2 + 2 + 4 * offsets.length;
+        for (String name : keyNames) {
+            byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+            header.writeByte(bytes.length);
+            header.write(bytes);
+            headerSize += 1 + bytes.length;
+        }
+        for (int offset : offsets) {
+            header.writeInt(headerSize + offset);
+        }
+        records.writeTo(table);
+
+        Path target = new File(directory, TABLE_FILE).toPath();
+        // createTempFileは所有者だけが読めるファイルを作るので、普通のファイルとして作る (他のアカウントからも読めるように)
+        // 同時に作り直す他のプロセスと重ならないよう、名前にプロセスIDを入れる
+        Path temp = directory.toPath().resolve(TABLE_FILE + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temp, table.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return files.size();
+    }
+
+    // 1ステージ分を書き込む
+    // 発射確率(double) 敵機の速さ・下がる量(short) ボス機の画像(byte、なしは-1) ボス機の高さ・耐久力・横と縦の速さ(short)
+    // 敵機の数(short) 敵機ごとにx・y(short)と画像(byte)
+    private static void writeStage(File file, List<String> keyNames, DataOutputStream out) throws IOException {
+        double fireRate = 0.004;
+        int enemySpeed = Constants.ENEMY_SPEED;
+        int enemyDrop = 20;
+        String bossKey = null;
+        int bossY = 150;
+        int bossLife = 10;
+        int bossSpeedX = 5;
+        int bossSpeedY = 5;
+        List<int[]> enemies = new ArrayList<>();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            try {
+                switch (words[0]) {
+                    case "fireRate":
+                        fireRate = Double.parseDouble(words[1]);
+                        break;
+                    case "enemySpeed":
+                        enemySpeed = parseShort(words[1]);
+                        break;
+                    case "enemyDrop":
+                        enemyDrop = parseShort(words[1]);
+                        break;
+                    case "grid": {
+                        int columns = Integer.parseInt(words[1]);
+                        int spacing = Integer.parseInt(words[2]);
+                        for (int i = 0; i < columns; i++) {
+                            for (int j = 3; j < words.length; j++) {
+                                enemies.add(new int[] {checkShort(spacing + i * spacing), checkShort(spacing + (j - 3) * spacing), keyIndex(words[j], keyNames)});
+                            }
+                        }
+                        break;
+                    }
+                    case "enemy":
+                        enemies.add(new int[] {parseShort(words[1]), parseShort(words[2]), keyIndex(words[3], keyNames)});
+                        break;
+                    case "boss":
+                        bossKey = words[1];
+                        break;
+                    case "bossY":
+                        bossY = parseShort(words[1]);
+                        break;
+                    case "bossLife":
+                        bossLife = parseShort(words[1]);
+                        break;
+                    case "bossSpeed":
+                        bossSpeedX = parseShort(words[1]);
+                        bossSpeedY = parseShort(words[2]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown item " + words[0]);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(file + ":" + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (bossKey == null) {
+            throw new IOException(file + ": no boss");
+        }
+        if (enemies.size() > 0xFFFF) {
+            throw new IOException(file + ": too many enemies");
+        }
+
+        out.writeDouble(fireRate);
+        out.writeShort(enemySpeed);
+        out.writeShort(enemyDrop);
+        out.writeByte(keyIndex(bossKey, keyNames));
+        out.writeShort(bossY);
+        out.writeShort(bossLife);
+        out.writeShort(bossSpeedX);
+        out.writeShort(bossSpeedY);
+        out.writeShort(enemies.size());
+        for (int[] enemy : enemies) {
+            out.writeShort(enemy[0]);
+            out.writeShort(enemy[1]);
+            out.writeByte(enemy[2]);
+        }
+    }
+
+    // shortで書き込む値 (読み込む時に符号付きのshortになるので、その範囲外はエラー)
+    private static int parseShort(String word) {
+        return checkShort(Integer.parseInt(word));
+    }
+
+    private static int checkShort(int value) {
+        if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("value out of range " + value);
+        }
+        return value;
+    }
+
+    // 画像の名前を表の中の番号にする (ImageKeyにない名前はエラー)
+    private static int keyIndex(String name, List<String> keyNames) {
+        ImageKey.valueOf(name);
+        int index = keyNames.indexOf(name);
+        if (index < 0) {
+            if (keyNames.size() >= 127) {
+                throw new IllegalArgumentException("too many images");
+            }
+            keyNames.add(name);
+            index = keyNames.size() - 1;
+        }
+        return index;
+    }
+}
+
+// 難易度の調整値 (敵機の発射確率の倍率、アイテムの出現確率、ミサイルの発射間隔)
+// ステージごとの発射確率はステージファイルにある
+class GameParams {
+    public static final GameParams DEFAULT = new GameParams(1.0, 0.004, 1000);
+
+    private final double fireRateScale;
+    private final double itemChance;
+    private final int missileInterval;
+
+    public GameParams(double fireRateScale, double itemChance, int missileInterval) {
+        this.fireRateScale = fireRateScale;
+        this.itemChance = itemChance;
+        this.missileInterval = missileInterval;
+    }
+
+    // 発射確率に一律に倍率をかけたもの
+    public GameParams withFireRateScale(double scale) {
+        return new GameParams(fireRateScale * scale, itemChance, missileInterval);
+    }
+
+    public GameParams withItemChance(double chance) {
+        return new GameParams(fireRateScale, chance, missileInterval);
+    }
+
+    public GameParams withMissileInterval(int interval) {
+        return new GameParams(fireRateScale, itemChance, interval);
+    }
+
+    // ステージの発射確率に倍率をかけたもの (1tickあたり)
+    public double getFireRate(StageLayout layout) {
+        return layout.getFireRate() * fireRateScale;
+    }
+
+    // getItemChance
+    public double getItemChance() {
+        return itemChance;
+    }
+
+    // getMissileInterval
+    public int getMissileInterval() {
+        return missileInterval;
+    }
+
+    // getFireRateScale
+    public double getFireRateScale() {
+        return fireRateScale;
+    }
+}
+
+// ゲームを自動で操作するプレイヤー
+interface Bot {
+    // 次のtickの入力 (GameWorld.INPUT_*)
+    int nextInput(GameWorld world);
+}
+
+// 敵機を追いかけて撃ち続け、近くの敵機のミサイルを避けるボット
+class ScriptedBot implements Bot {
+    // この距離より近い敵機のミサイルを避ける
+    private static final int DANGER_DISTANCE = 150;
+
+    @Override
+    public int nextInput(GameWorld world) {
+        Player player = world.getPlayer();
+        int center = player.getX() + player.getWidth() / 2;
+
+        // 真上から来る敵機のミサイルを避ける
+        EntityStore enemyMissiles = world.getEnemyMissiles();
+        for (int i = 0; i < enemyMissiles.size(); i++) {
+            int x = enemyMissiles.x[i];
+            int y = enemyMissiles.y[i];
+            if (y > player.getY() - DANGER_DISTANCE && y < player.getY() + player.getHeight()
+                    && x >= player.getX() - 8 && x <= player.getX() + player.getWidth() + 8) {
+                boolean goLeft = x >= center ? player.getX() > 0 : player.getX() >= Constants.SCREEN_WIDTH - player.getWidth();
+                return GameWorld.INPUT_FIRE | (goLeft ? GameWorld.INPUT_LEFT : GameWorld.INPUT_RIGHT);
+            }
+        }
+
+        // 一番下にいる敵機 (いなければボス機) の真下へ移動
+        int target = -1;
+        EntityStore enemies = world.getEnemies();
+        int lowest = Integer.MIN_VALUE;
+        for (int i = 0; i < enemies.size(); i++) {
+            if (enemies.isAlive(i) && enemies.y[i] > lowest) {
+                lowest = enemies.y[i];
+                target = enemies.x[i] + enemies.width[i] / 2;
+            }
+        }
+        Boss boss = world.getBoss();
+        if (target < 0 && boss != null && boss.isAlive()) {
+            target = boss.getX() + boss.getWidth() / 2;
+        }
+        int input = GameWorld.INPUT_FIRE;
+        if (target >= 0 && target < center - player.getSpeed()) {
+            input |= GameWorld.INPUT_LEFT;
+        } else if (target > center + player.getSpeed()) {
+            input |= GameWorld.INPUT_RIGHT;
+        }
+        return input;
+    }
+}
+
+// ランダムに操作するボット (入力は数tickごとに変える)
+class RandomBot implements Bot {
+    private final GameRandom random;
+    private int input = 0;
+
+    public RandomBot(long seed) {
+        random = new GameRandom(seed);
+    }
+
+    @Override
+    public int nextInput(GameWorld world) {
+        if (random.nextInt(10) == 0) {
+            input = random.nextInt(8);
+        }
+        return input;
+    }
+}
+
+// 難易度調整のためのモンテカルロシミュレーター
+// 調整値とステージとシードの組み合わせごとに画面なしでゲームを走らせ、ForkJoinPoolで全コアに分散する
+// 結果は組み合わせの順に集計するので、スレッド数によらず同じレポートになる
+// java -Djava.awt.headless=true -cp . BalanceSimulator [1組あたりの回数] [最大tick数] [scripted|random] [CSVファイル]
+class BalanceSimulator {
+    // 1つのシミュレーション
+    static final class Job {
+        final int paramIndex;
+        final GameParams params;
+        final int stage;
+        final long seed;
+
+        Job(int paramIndex, GameParams params, int stage, long seed) {
+            this.paramIndex = paramIndex;
+            this.params = params;
+            this.stage = stage;
+            this.seed = seed;
+        }
+    }
+
+    // 1つのシミュレーションの結果
+    static final class RunResult {
+        int ticks;
+        int score;
+        int stageReached;
+        int itemsPicked;
+        boolean cleared;
+    }
+
+    // ジョブの範囲を分割して実行する
+    static final class RunTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 4;
+        private final Job[] jobs;
+        private final RunResult[] results;
+        private final int from;
+        private final int to;
+        private final int maxTicks;
+        private final boolean scripted;
+
+        RunTask(Job[] jobs, RunResult[] results, int from, int to, int maxTicks, boolean scripted) {
+            this.jobs = jobs;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.maxTicks = maxTicks;
+            this.scripted = scripted;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = run(jobs[i], maxTicks, scripted);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RunTask(jobs, results, from, middle, maxTicks, scripted),
+                    new RunTask(jobs, results, middle, to, maxTicks, scripted));
+        }
+    }
+
+    // ゲームオーバー・全クリア・最大tick数のいずれかまで走らせる
+    static RunResult run(Job job, int maxTicks, boolean scripted) {
+        GameWorld world = new GameWorld(job.seed, job.stage, job.params);
+        Bot bot = scripted ? new ScriptedBot() : new RandomBot(job.seed ^ 0x5DEECE66DL);
+        while (!world.isGameOver() && !world.isGameClear() && world.getTickCount() < maxTicks) {
+            world.tick(bot.nextInput(world));
+        }
+        RunResult result = new RunResult();
+        result.ticks = (int) world.getTickCount();
+        result.score = world.getScore();
+        result.stageReached = world.getStage();
+        result.itemsPicked = world.getItemsPicked();
+        result.cleared = world.isGameClear();
+        return result;
+    }
+
+    // 調べる調整値の組み合わせ
+    static List<GameParams> parameterSets() {
+        List<GameParams> sets = new ArrayList<>();
+        double[] fireScales = {0.75, 1.0, 1.25};
+        double[] itemChances = {0.002, 0.004, 0.008};
+        int[] missileIntervals = {800, 1000, 1200};
+        for (double fireScale : fireScales) {
+            for (double itemChance : itemChances) {
+                for (int missileInterval : missileIntervals) {
+                    sets.add(GameParams.DEFAULT.withFireRateScale(fireScale).withItemChance(itemChance).withMissileInterval(missileInterval));
+                }
+            }
+        }
+        return sets;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int maxTicks = args.length > 1 ? Integer.parseInt(args[1]) : Constants.TICK_RATE * 60 * 10;
+        boolean scripted = args.length <= 2 || !args[2].equals("random");
+        String csvFile = args.length > 3 ? args[3] : null;
+
+        // 画像のサイズはワーカーで使う前に読み込んでおく
+        ImageLoader.getInstance();
+
+        List<GameParams> sets = parameterSets();
+        int stages = StageLayout.getStageCount();
+        Job[] jobs = new Job[sets.size() * stages * runs];
+        int n = 0;
+        for (int p = 0; p < sets.size(); p++) {
+            for (int stage = 1; stage <= stages; stage++) {
+                for (int r = 0; r < runs; r++) {
+                    // シードは組み合わせから決める (同じ引数なら同じ結果)
+                    jobs[n++] = new Job(p, sets.get(p), stage, ((long) p * 1_000_003L + stage) * 1_000_033L + r);
+                }
+            }
+        }
+        RunResult[] results = new RunResult[jobs.length];
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        pool.invoke(new RunTask(jobs, results, 0, jobs.length, maxTicks, scripted));
+        long elapsed = System.nanoTime() - start;
+
+        StringBuilder report = new StringBuilder();
+        report.append("fireScale,itemChance,missileInterval,stage,runs,survivalSec,score,stageReached,itemsPicked,clearRate\n");
+        for (int i = 0; i < jobs.length; i += runs) {
+            Job job = jobs[i];
+            double ticks = 0, score = 0, stageReached = 0, items = 0, cleared = 0;
+            for (int r = i; r < i + runs; r++) {
+                ticks += results[r].ticks;
+                score += results[r].score;
+                stageReached += results[r].stageReached;
+                items += results[r].itemsPicked;
+                cleared += results[r].cleared ? 1 : 0;
+            }
+            report.append(String.format(Locale.ROOT, "%.2f,%.4f,%d,%d,%d,%.1f,%.0f,%.2f,%.2f,%.3f%n",
+                    job.params.getFireRateScale(), job.params.getItemChance(), job.params.getMissileInterval(), job.stage, runs,
+                    ticks / runs / Constants.TICK_RATE, score / runs, stageReached / runs, items / runs, cleared / runs));
+        }
+        if (csvFile != null) {
+            try (FileWriter writer = new FileWriter(csvFile)) {
+                writer.write(report.toString());
+            }
+        } else {
+            System.out.print(report);
+        }
+        System.out.printf(Locale.ROOT, "%d runs on %d threads in %.1f s%n", jobs.length, pool.getParallelism(), elapsed / 1e9);
+    }
+}
+
+// シード付きの乱数 (xorshift64*)
+// アルゴリズムを固定しているので、JDKのバージョンが違っても同じ乱数列になる
+class GameRandom {
+    private long state;
+
+    public GameRandom(long seed) {
+        // splitmix64でシードをかき混ぜる (0にはしない)
+        long z = mix(seed + 0x9E3779B97F4A7C15L);
+        state = z != 0 ? z : 0x9E3779B97F4A7C15L;
+    }
+
+    // splitmix64の混ぜ方
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // seed・a・bだけから決まる0.0以上1.0未満の値 (引く順番によらない乱数)
+    static double hashDouble(long seed, long a, long b) {
+        long z = mix(mix(seed + a * 0x9E3779B97F4A7C15L) + b * 0xD1B54A32D192ED03L);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    public long nextLong() {
+        state ^= state >>> 12;
+        state ^= state << 25;
+        state ^= state >>> 27;
+        return state * 0x2545F4914F6CDD1DL;
+    }
+
+    // 0.0以上1.0未満
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    // 0以上bound未満
+    public int nextInt(int bound) {
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+}
+
+// tickごとの入力の記録
+// 入力のビットを連長圧縮して、プレイ終了時にまとめてファイルに書き出す
+// ファイル形式: "AKRP" 版数 シード 開始ステージ tickレート, (tick数 入力)の繰り返し, 0, 総tick数 状態のハッシュ値
+class InputRecorder {
+    public static final int MAGIC = 0x414B5250;
+    // 2: 敵機の発射の乱数をtick数と敵機の番号から決めるようにした
+    public static final int VERSION = 2;
+
+    private final File file;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private int currentBits = -1;
+    private int runLength = 0;
+    private long ticks = 0;
+    private boolean closed = false;
+
+    public InputRecorder(File file, long seed, int stage) {
+        this.file = file;
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(seed);
+            out.writeInt(stage);
+            out.writeInt(Constants.TICK_RATE);
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みは失敗しない
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 1tick分の入力を記録する
+    public void record(int bits) {
+        if (closed) {
+            return;
+        }
+        ticks++;
+        if (bits == currentBits) {
+            runLength++;
+            return;
+        }
+        flushRun();
+        currentBits = bits;
+        runLength = 1;
+    }
+
+    private void flushRun() {
+        if (runLength == 0) {
+            return;
+        }
+        writeVarInt(runLength);
+        buffer.write(currentBits);
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.write(value);
+    }
+
+    // 記録を終えてファイルに書き出す
+    public void close(GameWorld world) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushRun();
+            writeVarInt(0);
+            out.writeLong(ticks);
+            out.writeLong(world.stateHash());
+            try (FileOutputStream fileOut = new FileOutputStream(file)) {
+                buffer.writeTo(fileOut);
             }
-            ImageKey key = null;
-            switch(Constants.stage) {
-                case 1:
-                    key = ImageKey.BOSS1;
-                    break;
-                case 2:
-                    key = ImageKey.BOSS2;
-                    break;
-                case 3:
-                    key = ImageKey.BOSS3;
-                    break;
-                case 4:
-                    key = ImageKey.BOSS4;
-                    break;
-                case 5:
-                    key = ImageKey.BOSS5;
-                    break;
-                case 6:
-                    key = ImageKey.BOSS6;
-                    break;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// InputRecorderで記録した入力の再生
+class InputPlayer {
+    private final long seed;
+    private final int stage;
+    private final int[] runLengths;
+    private final int[] runBits;
+    private final long totalTicks;
+    private final long expectedHash;
+    private int run = 0;
+    private int remaining;
+
+    public InputPlayer(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != InputRecorder.MAGIC) {
+                throw new IOException("not a replay file: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != InputRecorder.VERSION) {
+                throw new IOException("unsupported replay version: " + version);
+            }
+            seed = in.readLong();
+            stage = in.readInt();
+            int tickRate = in.readInt();
+            if (tickRate != Constants.TICK_RATE) {
+                throw new IOException("replay was recorded at " + tickRate + " ticks/s, running at " + Constants.TICK_RATE);
             }
-            if (Math.random() < percentange) {
-                enemyMissiles.add(new EnemyMissile(boss.getX() + imageLoader.getImageWidth(key) / 2, boss.getY() + imageLoader.getImageHeight(key)));
+            List<int[]> runs = new ArrayList<>();
+            int length;
+            while ((length = readVarInt(in)) != 0) {
+                runs.add(new int[] {length, in.readUnsignedByte()});
             }
+            runLengths = new int[runs.size()];
+            runBits = new int[runs.size()];
+            for (int i = 0; i < runs.size(); i++) {
+                runLengths[i] = runs.get(i)[0];
+                runBits[i] = runs.get(i)[1];
+            }
+            totalTicks = in.readLong();
+            expectedHash = in.readLong();
         }
+        remaining = runLengths.length > 0 ? runLengths[0] : 0;
+    }
 
-        // 画面外に出た敵機のミサイルを削除
-        enemyMissiles.removeIf(missile -> !missile.isVisible());
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
 
-        // 敵機のミサイルの移動
-        enemyMissiles.forEach(EnemyMissile::move);
+    // 次のtickの入力 (記録が終わったら0)
+    public int nextInput() {
+        if (run >= runLengths.length) {
+            return 0;
+        }
+        int bits = runBits[run];
+        if (--remaining == 0) {
+            run++;
+            remaining = run < runLengths.length ? runLengths[run] : 0;
+        }
+        return bits;
+    }
 
-        // 敵機のミサイルと自機の当たり判定
-        enemyMissiles.forEach(missile -> {
-            if (missile.collidesWith(player)) {
-                missile.hit();
-                player.hit();
-            }
-        });
+    public boolean isFinished() {
+        return run >= runLengths.length;
+    }
 
-        // ボス機の移動
-        if (boss != null && boss.isAlive() && boss.getBang() == 0) {
-            boss.move();
+    // 記録と同じ条件のGameWorldを作る
+    public GameWorld createWorld() {
+        return new GameWorld(seed, stage);
+    }
+
+    // 記録の最後と同じ状態になったか
+    public boolean matches(GameWorld world) {
+        return world.getTickCount() == totalTicks && world.stateHash() == expectedHash;
+    }
+
+    // 画面を使わずに再生して、記録と同じ結果になるか確認する
+    // java -Djava.awt.headless=true -cp . InputPlayer replay.bin
+    public static void main(String[] args) throws IOException {
+        InputPlayer player = new InputPlayer(new File(args[0]));
+        GameWorld world = player.createWorld();
+        while (!player.isFinished()) {
+            world.tick(player.nextInput());
+        }
+        System.out.println("ticks: " + world.getTickCount() + ", stage: " + world.getStage() + ", score: " + world.getScore());
+        System.out.println(player.matches(world) ? "replay OK" : "replay MISMATCH");
+    }
+}
+
+// tickごとのゲームの状態の記録 (フライトレコーダー)
+// 固定長のレコードをメモリマップしたリングファイルに書き続け、直近N分の状態を残す
+// 書き込みはマップしたメモリへの書き込みだけなのでシステムコールを使わず、プロセスが落ちたり固まったりしてもOSのページキャッシュからファイルに残る
+// ファイル形式: ヘッダー64バイト ("AKFR" 版数 レコード長 レコード数 tickレート 予備 開始時刻 書いたレコードの総数), レコードの繰り返し
+// (ゲームループのスレッドだけから使う)
+class TickRecorder {
+    public static final int MAGIC = 0x414B4652; // "AKFR"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 48;
+    // ヘッダー内の位置
+    static final int CAPACITY_OFFSET = 12;
+    static final int TICK_RATE_OFFSET = 16;
+    static final int START_OFFSET = 24;
+    static final int COUNT_OFFSET = 32;
+    // レコード内の位置
+    static final int TICK = 0;
+    static final int NANO_TIME = 8;
+    static final int FRAME_NANOS = 16;
+    static final int UPDATE_NANOS = 20;
+    static final int PAINT_NANOS = 24;
+    static final int SCORE = 28;
+    static final int ENEMIES = 32;
+    static final int MISSILES = 34;
+    static final int ENEMY_MISSILES = 36;
+    static final int ITEMS = 38;
+    static final int PLAYER_X = 40;
+    static final int PLAYER_Y = 42;
+    static final int LIFE = 44;
+    static final int STAGE = 45;
+    static final int INPUT = 46;
+    static final int DROPPED_TICKS = 47;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // 書いたレコードの総数
+    private long count = 0;
+
+    private TickRecorder(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    // 直近minutes分のリングファイルを開く (前回の記録は上書きする、開けなければnull)
+    public static TickRecorder open(File file, int minutes) {
+        int capacity = Math.max(1, minutes * 60 * Constants.TICK_RATE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            // 前回より短い時は余りを切り詰める (マップはチャンネルを閉じても有効)
+            channel.truncate(size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putInt(TICK_RATE_OFFSET, Constants.TICK_RATE);
+            buffer.putLong(START_OFFSET, System.currentTimeMillis());
+            buffer.putLong(COUNT_OFFSET, 0);
+            return new TickRecorder(buffer, capacity);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
+    }
 
-        // 衝突判定
-        missiles.forEach(missile -> {
-            enemies.forEach(enemy -> {
-                if (enemy.isAlive() && missile.collidesWith(enemy)) {
-                    missile.hit();
-                    enemy.hit();
-                    int time2 = (int) System.currentTimeMillis() - time;
-                    Constants.scoreManager.addScore(1000 - time2 / 100);
+    // 1tick分のレコードを書く (worldはステージ画面以外ではnull)
+    // フレームと描画の時間は直前に終わったフレームの値
+    public void record(long tick, long frameNanos, long updateNanos, long paintNanos, GameWorld world, int input, long droppedTicks) {
+        int offset = HEADER_SIZE + (int) (count % capacity) * RECORD_SIZE;
+        MappedByteBuffer b = buffer;
+        b.putLong(offset + TICK, tick);
+        b.putLong(offset + NANO_TIME, System.nanoTime());
+        b.putInt(offset + FRAME_NANOS, clampInt(frameNanos));
+        b.putInt(offset + UPDATE_NANOS, clampInt(updateNanos));
+        b.putInt(offset + PAINT_NANOS, clampInt(paintNanos));
+        if (world != null) {
+            Player player = world.getPlayer();
+            b.putInt(offset + SCORE, world.getScore());
+            b.putChar(offset + ENEMIES, clampChar(world.getEnemies().size()));
+            b.putChar(offset + MISSILES, clampChar(world.getMissiles().size()));
+            b.putChar(offset + ENEMY_MISSILES, clampChar(world.getEnemyMissiles().size()));
+            b.putChar(offset + ITEMS, clampChar(world.getItems().size()));
+            b.putShort(offset + PLAYER_X, (short) player.getX());
+            b.putShort(offset + PLAYER_Y, (short) player.getY());
+            b.put(offset + LIFE, (byte) Math.min(player.getLife(), 127));
+            b.put(offset + STAGE, (byte) world.getStage());
+        } else {
+            b.putInt(offset + SCORE, 0);
+            b.putLong(offset + ENEMIES, 0);
+            b.putInt(offset + PLAYER_X, 0);
+            b.putShort(offset + LIFE, (short) 0);
+        }
+        b.put(offset + INPUT, (byte) input);
+        b.put(offset + DROPPED_TICKS, (byte) Math.min(droppedTicks, 255));
+        // レコードを書き終えてから総数を進める (読む側は総数までのレコードを使う)
+        count++;
+        b.putLong(COUNT_OFFSET, count);
+    }
+
+    private static int clampInt(long value) {
+        return (int) Math.min(value, Integer.MAX_VALUE);
+    }
+
+    private static char clampChar(int value) {
+        return (char) Math.min(value, Character.MAX_VALUE);
+    }
+
+    // getCount
+    public long getCount() {
+        return count;
+    }
+}
+
+// フライトレコーダーのファイルを読んで表示する (ゲームが落ちた後や、固まっている間に別のプロセスで読む)
+// dump: レコードを1行ずつ表示する  graph: 1秒ごとのフレーム時間の最大値と固まっていた時間を棒グラフで表示する
+// java TickRecorderReader flight.rec [dump|graph] [最後の秒数]
+class TickRecorderReader {
+    // tickの間隔がこの倍数を超えたら固まっていたとみなす
+    private static final int STALL_FACTOR = 10;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int tickRate;
+    private final long startMillis;
+    private final long count;
+
+    public TickRecorderReader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < TickRecorder.HEADER_SIZE || buffer.getInt(0) != TickRecorder.MAGIC) {
+            throw new IOException(file + ": not a flight recorder file");
+        }
+        if (buffer.getInt(4) != TickRecorder.VERSION || buffer.getInt(8) != TickRecorder.RECORD_SIZE) {
+            throw new IOException(file + ": unsupported version " + buffer.getInt(4));
+        }
+        capacity = buffer.getInt(TickRecorder.CAPACITY_OFFSET);
+        tickRate = buffer.getInt(TickRecorder.TICK_RATE_OFFSET);
+        startMillis = buffer.getLong(TickRecorder.START_OFFSET);
+        count = buffer.getLong(TickRecorder.COUNT_OFFSET);
+    }
+
+    // 残っているレコードの数
+    public int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    // 古い方からi番目のレコードの位置
+    private int offset(int i) {
+        long index = count - size() + i;
+        return TickRecorder.HEADER_SIZE + (int) (index % capacity) * TickRecorder.RECORD_SIZE;
+    }
+
+    public long getTick(int i) {
+        return buffer.getLong(offset(i) + TickRecorder.TICK);
+    }
+
+    public long getNanoTime(int i) {
+        return buffer.getLong(offset(i) + TickRecorder.NANO_TIME);
+    }
+
+    public int getFrameNanos(int i) {
+        return buffer.getInt(offset(i) + TickRecorder.FRAME_NANOS);
+    }
+
+    public int getUpdateNanos(int i) {
+        return buffer.getInt(offset(i) + TickRecorder.UPDATE_NANOS);
+    }
+
+    public int getPaintNanos(int i) {
+        return buffer.getInt(offset(i) + TickRecorder.PAINT_NANOS);
+    }
+
+    public int getStage(int i) {
+        return buffer.get(offset(i) + TickRecorder.STAGE);
+    }
+
+    // 1行の表示
+    public String format(int i) {
+        int o = offset(i);
+        return String.format(Locale.ROOT, "%9d %10.3f %7.2f %7.2f %7.2f  %d %3d %9d %5d %5d %6d %4d  (%4d,%4d) %02x %3d",
+                buffer.getLong(o + TickRecorder.TICK),
+                (getNanoTime(i) - getNanoTime(0)) / 1e9,
+                buffer.getInt(o + TickRecorder.FRAME_NANOS) / 1e6,
+                buffer.getInt(o + TickRecorder.UPDATE_NANOS) / 1e6,
+                buffer.getInt(o + TickRecorder.PAINT_NANOS) / 1e6,
+                buffer.get(o + TickRecorder.STAGE),
+                buffer.get(o + TickRecorder.LIFE),
+                buffer.getInt(o + TickRecorder.SCORE),
+                (int) buffer.getChar(o + TickRecorder.ENEMIES),
+                (int) buffer.getChar(o + TickRecorder.MISSILES),
+                (int) buffer.getChar(o + TickRecorder.ENEMY_MISSILES),
+                (int) buffer.getChar(o + TickRecorder.ITEMS),
+                buffer.getShort(o + TickRecorder.PLAYER_X),
+                buffer.getShort(o + TickRecorder.PLAYER_Y),
+                buffer.get(o + TickRecorder.INPUT) & 0xFF,
+                buffer.get(o + TickRecorder.DROPPED_TICKS) & 0xFF);
+    }
+
+    public void dump(PrintStream out, int from) {
+        out.println("     tick      time   frame  update   paint  st life     score   enm   mis  e.mis item  player      in drop");
+        for (int i = from; i < size(); i++) {
+            out.println(format(i));
+        }
+    }
+
+    // 1秒ごとにフレーム時間の最大値を棒グラフにし、tickの間隔が大きく空いた所を固まっていた時間として表示する
+    public void graph(PrintStream out, int from) {
+        long tickNanos = 1_000_000_000L / tickRate;
+        int i = from;
+        while (i < size()) {
+            long secondStart = getNanoTime(i);
+            long maxFrame = 0;
+            long maxUpdate = 0;
+            long stall = 0;
+            int stage = getStage(i);
+            long firstTick = getTick(i);
+            while (i < size() && getNanoTime(i) - secondStart < 1_000_000_000L) {
+                maxFrame = Math.max(maxFrame, getFrameNanos(i));
+                maxUpdate = Math.max(maxUpdate, getUpdateNanos(i));
+                if (i + 1 < size()) {
+                    long gap = getNanoTime(i + 1) - getNanoTime(i);
+                    if (gap > tickNanos * STALL_FACTOR) {
+                        stall = Math.max(stall, gap);
+                    }
                 }
-            });
-            if (boss != null && missile.collidesWith(boss)) {
-                missile.hit();
-                boss.hit();
-                int time2 = (int) System.currentTimeMillis() - time;
-                Constants.scoreManager.addScore(1000 - time2 / 100);
+                i++;
             }
-        });
+            int bar = (int) Math.min(60, maxFrame * 20 / tickNanos);
+            out.printf(Locale.ROOT, "%9d st%d frame %7.2f update %7.2f |%-60s|%s%n", firstTick, stage, maxFrame / 1e6, maxUpdate / 1e6,
+                    "#".repeat(bar), stall > 0 ? String.format(Locale.ROOT, " stalled %.2f s", stall / 1e9) : "");
+        }
+    }
 
-        // 自機が敵機に当たったかどうかの判定
-        enemies.forEach(enemy -> {
-            if (player.collidesWith(enemy)) {
-                player.setLife(1);
-                player.hit();
-            }
-        });
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: java TickRecorderReader flight.rec [dump|graph] [seconds]");
+            System.exit(2);
+        }
+        TickRecorderReader reader = new TickRecorderReader(new File(args[0]));
+        String mode = args.length > 1 ? args[1] : "graph";
+        int from = 0;
+        if (args.length > 2) {
+            from = Math.max(0, reader.size() - Integer.parseInt(args[2]) * reader.tickRate);
+        }
+        System.out.println(reader.count + " ticks recorded since " + Instant.ofEpochMilli(reader.startMillis) + ", " + reader.size() + " kept");
+        if (reader.size() > 0) {
+            long last = reader.getNanoTime(reader.size() - 1);
+            System.out.println("last tick " + reader.getTick(reader.size() - 1) + " at " + String.format(Locale.ROOT, "%.3f s", (last - reader.getNanoTime(0)) / 1e9) + " after the oldest kept record");
+        }
+        if (mode.equals("dump")) {
+            reader.dump(System.out, from);
+        } else {
+            reader.graph(System.out, from);
+        }
+    }
+}
 
-        // 自機がボス機に当たったかどうかの判定
-        if (boss != null && player.collidesWith(boss)) {
-            player.hit();
-            boss.hit();
+// 協力プレイで送るゲームの状態 (サーバーのGameWorld.captureで取り出し、クライアントのGameWorld.restoreで戻す)
+// 状態は表の集まりで、表ごとに行数と、int の列を持つ (差分は同じ表の同じ行・列どうしで取る)
+// 列の配列は行数に合わせて伸ばし、使い回している間はメモリを確保しない
+class WorldSnapshot {
+    // 表
+    static final int HEADER = 0;
+    static final int PLAYERS = 1;
+    static final int BOSS = 2;
+    static final int ENEMIES = 3;
+    static final int MISSILES = 4;
+    static final int ENEMY_MISSILES = 5;
+    static final int ITEMS = 6;
+    static final int TABLE_COUNT = 7;
+    // HEADERの列 (STATEはゲームオーバーが1、ゲームクリアが2のビット)
+    static final int TICK = 0;
+    static final int STAGE = 1;
+    static final int SCORE = 2;
+    static final int DISPLAY_STAGE = 3;
+    static final int DISPLAY_GAME_OVER = 4;
+    static final int DISPLAY_GAME_CLEAR = 5;
+    static final int STATE = 6;
+    // PLAYERSの列 (INPUT_SEQはサーバーがその自機について処理した最後の入力の番号)
+    static final int PLAYER_X = 0;
+    static final int PLAYER_Y = 1;
+    static final int PLAYER_LIFE = 2;
+    static final int PLAYER_SPEED = 3;
+    static final int PLAYER_BANG = 4;
+    static final int PLAYER_ALIVE = 5;
+    static final int PLAYER_INPUT_SEQ = 6;
+    // BOSSの列
+    static final int BOSS_X = 0;
+    static final int BOSS_Y = 1;
+    static final int BOSS_KEY = 2;
+    static final int BOSS_WIDTH = 3;
+    static final int BOSS_HEIGHT = 4;
+    static final int BOSS_BANG = 5;
+    static final int BOSS_ALIVE = 6;
+    // 敵機・ミサイル・敵機のミサイル・アイテムの列 (EntityStoreの成分と同じ)
+    static final int ENTITY_X = 0;
+    static final int ENTITY_Y = 1;
+    static final int ENTITY_VX = 2;
+    static final int ENTITY_VY = 3;
+    static final int ENTITY_WIDTH = 4;
+    static final int ENTITY_HEIGHT = 5;
+    static final int ENTITY_FLAGS = 6;
+    static final int ENTITY_SPRITE = 7;
+    static final int ENTITY_TYPE = 8;
+    static final int ENTITY_BANG = 9;
+    private static final int[] COLUMN_COUNTS = {7, 7, 7, 10, 10, 10, 10};
+
+    // この状態のtick (-1は空き)
+    int tick = -1;
+    private final int[] rows = new int[TABLE_COUNT];
+    // [表][列][行]
+    private final int[][][] columns = new int[TABLE_COUNT][][];
+
+    WorldSnapshot() {
+        for (int table = 0; table < TABLE_COUNT; table++) {
+            columns[table] = new int[COLUMN_COUNTS[table]][16];
         }
+    }
 
-        // 敵機が画面外に出たかどうかの判定
-        enemies.removeIf(enemy -> enemy.getY() > Constants.SCREEN_HEIGHT);
+    static int getColumnCount(int table) {
+        return COLUMN_COUNTS[table];
+    }
 
-        // アイテムが画面外に出たかどうかの判定
-        items.removeIf(item -> item.getY() > Constants.SCREEN_HEIGHT);
+    void clear() {
+        Arrays.fill(rows, 0);
+    }
 
-        // enemiesのisAliveがfalseのものを削除
-        enemies.removeIf(enemy -> !enemy.isAlive() && enemy.getBang() == 0);
+    int getRows(int table) {
+        return rows[table];
+    }
 
-        // 敵機が全滅したかどうかの判定
-        if (enemies.isEmpty() && boss == null) {
-            // ボス機の出現
-            ImageKey key = null;
-            switch(Constants.stage) {
-                case 1:
-                    key = ImageKey.BOSS1;
-                    break;
-                case 2:
-                    key = ImageKey.BOSS2;
-                    break;
-                case 3:
-                    key = ImageKey.BOSS3;
-                    break;
-                case 4:
-                    key = ImageKey.BOSS4;
-                    break;
-                case 5:
-                    key = ImageKey.BOSS5;
-                    break;
-                case 6:
-                    key = ImageKey.BOSS6;
-                    break;
+    // 行数を決める (足りなければ列の配列を伸ばす、中身は上書きする前提)
+    void setRows(int table, int count) {
+        int[][] column = columns[table];
+        if (column[0].length < count) {
+            int capacity = Math.max(count, column[0].length * 2);
+            for (int c = 0; c < column.length; c++) {
+                column[c] = Arrays.copyOf(column[c], capacity);
             }
-            boss = new Boss(Constants.SCREEN_WIDTH / 2, 150, key);
-            boss.setX(Constants.SCREEN_WIDTH / 2 - imageLoader.getImageWidth(key) / 2);
-            boss.setHeight(imageLoader.getImageHeight(key));
-            boss.setWidth(imageLoader.getImageWidth(key));
         }
+        rows[table] = count;
+    }
+
+    // 行を1つ追加して番号を返す
+    int addRow(int table) {
+        int row = rows[table];
+        setRows(table, row + 1);
+        return row;
+    }
 
-        // 自機がやられたかどうかの判定
-        if (!player.isAlive()) {
-            // ゲームオーバー
-            if (!Constants.isGameOver) {
-                // ハイスコアの更新
-                Constants.scoreManager.updateHighScore();
+    int get(int table, int column, int row) {
+        return columns[table][column][row];
+    }
+
+    void set(int table, int column, int row, int value) {
+        columns[table][column][row] = value;
+    }
+
+    // 全ての表の内容のハッシュ値 (クライアントが差分から正しく復元できたかの確認用)
+    int hash() {
+        int hash = 17;
+        for (int table = 0; table < TABLE_COUNT; table++) {
+            hash = hash * 31 + rows[table];
+            for (int[] column : columns[table]) {
+                for (int row = 0; row < rows[table]; row++) {
+                    hash = hash * 31 + column[row];
+                }
             }
-            Constants.isGameOver = true;
-            Constants.stage = 1;
         }
+        return hash;
+    }
+}
 
-        // ボス機がやられたかどうかの判定
-        if (boss != null && !boss.isAlive() && boss.getBang() == 0) {
-            // ゲームクリア画面へ
-            // game.setScreen(new GameClearScreen(game));
-            if (Constants.stage < 6) {
-                int time2 = (int) System.currentTimeMillis() - time;
-                Constants.scoreManager.addScore(6000 - time2 / 100);
-                Constants.stage++;
-
-                // ステージ画面へ
-                game.screen = new StageScreen(game);
-                game.setScreen(game.screen);
-                game.screen.setBackground(Color.BLACK);
-                game.getContentPane().add(game.screen);
-                // thisを破棄
-                game.remove(this);
-            } else {
-                if (!Constants.isGameClear) {
-                    // ハイスコアの更新
-                    Constants.scoreManager.updateHighScore();
+// 協力プレイの通信 (UDP、1パケットに1つのメッセージ)
+// JOIN     クライアント→サーバー  [種類 版数]
+// WELCOME  サーバー→クライアント  [種類 自機の番号 人数 シード(long) 開始ステージ]
+// INPUT    クライアント→サーバー  [種類 自機の番号 受け取った最新の状態のtick 入力の番号 入力の数 入力(新しい順)...]
+// SNAPSHOT サーバー→クライアント  [種類 tick 基準のtick(-1は基準なし) 状態のハッシュ値 フラグ 表...]
+// 状態はクライアントが受け取ったと返してきた状態を基準にした差分で送る
+// 表ごとに行数、行ごとに基準から変わった列のビットマスクと、変わった列の差分をジグザグ符号化した可変長整数で書く
+// (基準にない行は全ての列が0の行との差分、変わっていない行は1バイト)
+// 1パケットはMAX_PACKETバイトまでで、全体では1行最大55バイトになる
+// (既定の容量でも敵機・敵機のミサイルが埋まると全体で約55KBになり、容量を増やすと収まらない)
+// 収まらない行は送らずにTRUNCATEDのフラグを立てる (クライアントは表示には使うが、次の差分の基準にはしない)
+class CoopProtocol {
+    static final byte JOIN = 1;
+    static final byte WELCOME = 2;
+    static final byte INPUT = 3;
+    static final byte SNAPSHOT = 4;
+    static final byte VERSION = 1;
+    static final int DEFAULT_PORT = 47800;
+    static final int MAX_PACKET = 65507;
+    // SNAPSHOTのフラグ (収まらなかった行を省いた)
+    static final byte TRUNCATED = 1;
+    // 表の行数に使うバイト数の上限 (MAX_PACKET未満の数の可変長整数)
+    private static final int MAX_ROW_COUNT_BYTES = 3;
+    // 1つの入力パケットに入れる入力の数 (パケットが落ちても後のパケットで届く)
+    static final int INPUT_REDUNDANCY = 8;
+    // 差分の基準にするために保持する状態の数 (tick)
+    static final int HISTORY = 32;
+
+    static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // currentをbaseline (nullは基準なし) との差分で書く
+    // outの残りに収まらない行は省き、その時はfalseを返す (outはByteBuffer.allocateで作ったもの)
+    // 行数は書き終わってから分かるので、最大の大きさの場所を空けて行を書き、行数を書いた後に詰める
+    static boolean writeSnapshot(ByteBuffer out, WorldSnapshot current, WorldSnapshot baseline) {
+        boolean complete = true;
+        for (int table = 0; table < WorldSnapshot.TABLE_COUNT; table++) {
+            int rows = current.getRows(table);
+            int baseRows = baseline == null ? 0 : baseline.getRows(table);
+            int columns = WorldSnapshot.getColumnCount(table);
+            // 1行の最大の大きさと、後に続く表の行数の分
+            int maxRowBytes = 5 + columns * 5;
+            int reserved = (WorldSnapshot.TABLE_COUNT - 1 - table) * MAX_ROW_COUNT_BYTES;
+            int countPosition = out.position();
+            int rowsStart = countPosition + MAX_ROW_COUNT_BYTES;
+            out.position(rowsStart);
+            int written = 0;
+            for (int row = 0; row < rows; row++) {
+                if (out.remaining() - reserved < maxRowBytes) {
+                    complete = false;
+                    break;
+                }
+                written++;
+                int mask = 0;
+                for (int c = 0; c < columns; c++) {
+                    int base = row < baseRows ? baseline.get(table, c, row) : 0;
+                    if (current.get(table, c, row) != base) {
+                        mask |= 1 << c;
+                    }
+                }
+                putVarInt(out, mask);
+                for (int c = 0; c < columns; c++) {
+                    if ((mask & (1 << c)) != 0) {
+                        int base = row < baseRows ? baseline.get(table, c, row) : 0;
+                        putVarInt(out, zigzag(current.get(table, c, row) - base));
+                    }
                 }
-                Constants.isGameClear = true;
             }
+            int rowsEnd = out.position();
+            out.position(countPosition);
+            putVarInt(out, written);
+            int length = rowsEnd - rowsStart;
+            System.arraycopy(out.array(), out.arrayOffset() + rowsStart, out.array(), out.arrayOffset() + out.position(), length);
+            out.position(out.position() + length);
         }
+        return complete;
+    }
 
-
-        // アイテムが自機に当たったかどうかの判定
-        items.forEach(item -> {
-            if(!item.isAlive()) {
-                return;
+    // baseline (nullは基準なし) との差分を読んでoutに復元する (outとbaselineは別のもの)
+    static void readSnapshot(ByteBuffer in, WorldSnapshot baseline, WorldSnapshot out) {
+        for (int table = 0; table < WorldSnapshot.TABLE_COUNT; table++) {
+            int rows = getVarInt(in);
+            // 1行は1バイト以上なので、残りより多い行数は壊れたパケット
+            if (rows < 0 || rows > in.remaining()) {
+                throw new IllegalArgumentException("bad row count " + rows);
             }
-            if (player.collidesWith(item)) {
-                switch(item.getType()) {
-                    case SCORE_UP:
-                        Constants.scoreManager.addScore(2000);
-                        break;
-                    case LIFE_UP:
-                        player.setLife(player.getLife() + 1);
-                        break;
-                    case SPEED_UP:
-                        player.setSpeed(player.getSpeed() + 1);
-                        break;
-                    case MISSILE_UPGRADE:
-                        Constants.missileInterval -= 100;
-                        break;
+            int baseRows = baseline == null ? 0 : baseline.getRows(table);
+            int columns = WorldSnapshot.getColumnCount(table);
+            out.setRows(table, rows);
+            for (int row = 0; row < rows; row++) {
+                int mask = getVarInt(in);
+                for (int c = 0; c < columns; c++) {
+                    int base = row < baseRows ? baseline.get(table, c, row) : 0;
+                    if ((mask & (1 << c)) != 0) {
+                        base += unzigzag(getVarInt(in));
+                    }
+                    out.set(table, c, row, base);
                 }
-                item.setAlive(false);
             }
-        });
+        }
+    }
+}
 
-        // 星の移動
-        stars.forEach(Star::move);
-        // 他のオブジェクトの更新処理
+// 遅延とパケットロスを真似る送信 (ループバックでの確認用、既定では何もせずにそのまま送る)
+// -Dakari.netLatency=ミリ秒 (片道) -Dakari.netJitter=ミリ秒 -Dakari.netLoss=% で、送るパケットを捨てたり遅らせたりする
+// 遅らせるパケットは送る時刻の順に並べておき、flushで時刻になった物を送る (ゆらぎがあると順番が入れ替わる)
+class NetworkShim {
+    private static final class Pending {
+        final long due;
+        final long order;
+        final byte[] data;
+        final SocketAddress target;
+
+        Pending(long due, long order, byte[] data, SocketAddress target) {
+            this.due = due;
+            this.order = order;
+            this.data = data;
+            this.target = target;
+        }
     }
-    public void render() {
-        paint(game.getGraphics());
+
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final int lossPercent;
+    private final GameRandom random;
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>((a, b) -> a.due != b.due ? Long.compare(a.due, b.due) : Long.compare(a.order, b.order));
+    private long order = 0;
+    private long dropped = 0;
+
+    NetworkShim(long seed) {
+        this(Constants.NET_LATENCY, Constants.NET_JITTER, Constants.NET_LOSS, seed);
     }
 
-    // paint
-    public void paint(Graphics g) {
-        // 画面を黒で塗りつぶす
-        g.fillRect(0, 0, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
-        if (displayStage > 0) {
-            g.setColor(Color.WHITE);
-            g.setFont(g.getFont().deriveFont(50f));
-            g.drawString("Stage " + Constants.stage, 400, 400);
+    NetworkShim(int latencyMillis, int jitterMillis, int lossPercent, long seed) {
+        this.latencyNanos = latencyMillis * 1_000_000L;
+        this.jitterNanos = jitterMillis * 1_000_000L;
+        this.lossPercent = lossPercent;
+        this.random = new GameRandom(seed);
+    }
+
+    // packetのpositionからlimitまでを送る
+    void send(DatagramChannel channel, ByteBuffer packet, SocketAddress target) throws IOException {
+        if (lossPercent > 0 && random.nextInt(100) < lossPercent) {
+            dropped++;
             return;
         }
-
-        if (Constants.isGameOver) {
-            g.setColor(Color.WHITE);
-            g.setFont(g.getFont().deriveFont(50f));
-            g.drawString("Game Over", 400, 400);
+        if (latencyNanos == 0 && jitterNanos == 0) {
+            channel.send(packet, target);
+            return;
         }
-
-        if (Constants.isGameClear) {
-            g.setColor(Color.WHITE);
-            g.setFont(g.getFont().deriveFont(50f));
-            g.drawString("Game Clear", 400, 400);
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        long delay = latencyNanos + (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+        pending.add(new Pending(System.nanoTime() + delay, order++, data, target));
+    }
+
+    // 時刻になったパケットを送る
+    void flush(DatagramChannel channel) throws IOException {
+        long now = System.nanoTime();
+        while (!pending.isEmpty() && pending.peek().due <= now) {
+            Pending p = pending.poll();
+            channel.send(ByteBuffer.wrap(p.data), p.target);
         }
+    }
+
+    // 次に送るパケットの時刻 (なければLong.MAX_VALUE)
+    long nextDueNanos() {
+        return pending.isEmpty() ? Long.MAX_VALUE : pending.peek().due;
+    }
 
-        Image playerImage = ((ImageIcon) imageLoader.getImage(ImageKey.PLAYER)).getImage();
+    // getDropped
+    long getDropped() {
+        return dropped;
+    }
+}
 
-        // playerの描画
-        if (player.getBang() > 0 && !player.isAlive()) {
-            Image playerBangImage = ((ImageIcon) imageLoader.getImage(ImageKey.PLAYER_BANG)).getImage();
-            g.drawImage(playerBangImage, player.getX(), player.getY(), this);
-            player.setBang(player.getBang() - 1);
-        } else if (player.isAlive()) {
-            g.drawImage(playerImage, player.getX(), player.getY(), this);
+// 協力プレイのサーバー (シミュレーションはサーバーだけが行う)
+// 1つのスレッドでノンブロッキングのDatagramChannelをSelectorで待ち、tickの間は届いた入力を読み、
+// tickごとに全員の入力でGameWorldを進めて、クライアントごとに受け取り済みの状態との差分を送る
+// 人数分のクライアントが揃ったらゲームを始める
+// java -Djava.awt.headless=true -cp . CoopServer [ポート] [人数] [ステージ]
+class CoopServer implements Runnable {
+    // 入力を溜めておく数 (2のべき乗)
+    private static final int INPUT_BUFFER = 64;
+    // クライアントの入力がこのtick数より先に溜まったら古い物を飛ばす (入力の遅延の上限)
+    private static final int MAX_INPUT_BACKLOG = 6;
+    // 統計を表示する間隔
+    private static final long REPORT_NANOS = 5_000_000_000L;
+
+    // 1人分の接続
+    static final class Client {
+        final SocketAddress address;
+        // 受け取った入力 (番号 & (INPUT_BUFFER-1) の位置)
+        final int[] inputSeqs = new int[INPUT_BUFFER];
+        final int[] inputBits = new int[INPUT_BUFFER];
+        int newestSeq = 0;
+        // 処理した最後の入力
+        int processedSeq = 0;
+        int lastInput = 0;
+        // クライアントが受け取った最新の状態のtick
+        int ackTick = -1;
+        // 統計 (累計と、前回の表示からの分)
+        long bytesSent = 0;
+        long windowBytes = 0;
+        long snapshots = 0;
+        long fullSnapshots = 0;
+        // 1パケットに収まらずに行を省いた数
+        long truncatedSnapshots = 0;
+        int windowMaxBacklog = 0;
+
+        Client(SocketAddress address) {
+            this.address = address;
         }
-        // 敵機の描画
-        enemies.forEach(enemy -> {
-            if (enemy.isAlive()) {
-                Image enemyImage = ((ImageIcon) imageLoader.getImage(enemy.getKey())).getImage();
-                g.drawImage(enemyImage, enemy.getX(), enemy.getY(), this);
-            } else if(enemy.getBang() > 0) {
-                Image enemyBangImage = ((ImageIcon) imageLoader.getImage(ImageKey.ENEMY_BANG)).getImage();
-                g.drawImage(enemyBangImage, enemy.getX(), enemy.getY(), this);
-                enemy.setBang(enemy.getBang() - 1);
+
+        // このtickで使う入力 (届いていなければ前の入力を続ける)
+        int nextInput() {
+            if (newestSeq - processedSeq > MAX_INPUT_BACKLOG) {
+                processedSeq = newestSeq - MAX_INPUT_BACKLOG;
             }
-        });
+            windowMaxBacklog = Math.max(windowMaxBacklog, newestSeq - processedSeq);
+            for (int seq = processedSeq + 1; seq <= newestSeq; seq++) {
+                int slot = seq & (INPUT_BUFFER - 1);
+                if (inputSeqs[slot] == seq) {
+                    // 途中の入力が落ちていた時は飛ばす
+                    processedSeq = seq;
+                    lastInput = inputBits[slot];
+                    break;
+                }
+            }
+            return lastInput;
+        }
+    }
 
-        // ボス機の描画
-        if (boss != null) {
-            if (boss.getBang() > 0) {
-                Image bossBangImage = ((ImageIcon) imageLoader.getImage(ImageKey.BOSS_BANG)).getImage();
-                g.drawImage(bossBangImage, boss.getX(), boss.getY(), this);
-                boss.setBang(boss.getBang() - 1);
-            } else if (boss.isAlive()) {
-                Image bossImage = ((ImageIcon) imageLoader.getImage(boss.getKey())).getImage();
-                g.drawImage(bossImage, boss.getX(), boss.getY(), this);
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final NetworkShim shim;
+    private final int playerCount;
+    private final int startStage;
+    private final long seed;
+    private final long tickNanos = 1_000_000_000L / Constants.TICK_RATE;
+    private final Client[] clients;
+    private int joined = 0;
+    private GameWorld world;
+    private final int[] inputs;
+    private final WorldSnapshot[] history = new WorldSnapshot[CoopProtocol.HISTORY];
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(CoopProtocol.MAX_PACKET);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(CoopProtocol.MAX_PACKET);
+    private volatile boolean running = true;
+    // tickの処理時間 (シミュレーションと全員への送信)
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    private long windowStart;
+
+    public CoopServer(int port, int playerCount, int startStage) throws IOException {
+        if (playerCount < 1 || playerCount > GameWorld.MAX_PLAYERS) {
+            throw new IllegalArgumentException("players: " + playerCount);
+        }
+        this.playerCount = playerCount;
+        this.startStage = startStage;
+        this.seed = Long.getLong("akari.seed", System.nanoTime());
+        this.clients = new Client[playerCount];
+        this.inputs = new int[playerCount];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = new WorldSnapshot();
+        }
+        shim = new NetworkShim(seed);
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    // 実際に使っているポート (0を指定した時用)
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextTick = System.nanoTime();
+        windowStart = nextTick;
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                if (world != null && now >= nextTick) {
+                    tick();
+                    nextTick += tickNanos;
+                    // 大きく遅れた時は追いつこうとせずに今から数え直す
+                    if (now - nextTick > tickNanos * Constants.MAX_CATCH_UP_TICKS) {
+                        nextTick = now;
+                    }
+                    if (now - windowStart >= REPORT_NANOS) {
+                        report(System.out, now);
+                    }
+                    continue;
+                }
+                long wake = Math.min(world != null ? nextTick : now + 100_000_000L, shim.nextDueNanos());
+                long timeoutMillis = Math.max(1, (wake - now + 999_999) / 1_000_000);
+                selector.select(timeoutMillis);
+                selector.selectedKeys().clear();
+                receive();
+                shim.flush(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 止まったことが分かるように必ず表示する
+            e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
+    }
 
-        // ミサイルの描画
-        missiles.forEach(missile -> {
-            if(!missile.isVisible()) {
+    // 届いているパケットを全て読む
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) {
                 return;
             }
-            Image missileImage = ((ImageIcon) imageLoader.getImage(ImageKey.PLAYER_MISSILE)).getImage();
-            g.drawImage(missileImage, missile.getX(), missile.getY(), this);
-        });
-
-        // 敵機のミサイルの描画
-        enemyMissiles.forEach(missile -> {
-            Image missileImage = ((ImageIcon) imageLoader.getImage(ImageKey.ENEMY_MISSILE)).getImage();
-            g.drawImage(missileImage, missile.getX(), missile.getY(), this);
-        });
+            receiveBuffer.flip();
+            try {
+                handle(receiveBuffer, from);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // 壊れたパケットは捨てる
+            }
+        }
+    }
 
-        // アイテムの描画
-        items.forEach(item -> {
-            if (!item.isAlive()) {
+    private void handle(ByteBuffer in, SocketAddress from) throws IOException {
+        byte type = in.get();
+        if (type == CoopProtocol.JOIN) {
+            if (in.get() != CoopProtocol.VERSION) {
                 return;
             }
-            ImageKey key = null;
-            switch(item.getType()) {
-                case SCORE_UP:
-                    key = ImageKey.ITEM1;
-                    break;
-                case LIFE_UP:
-                    key = ImageKey.ITEM2;
-                    break;
-                case SPEED_UP:
-                    key = ImageKey.ITEM3;
-                    break;
-                case MISSILE_UPGRADE:
-                    key = ImageKey.ITEM4;
-                    break;
+            int index = indexOf(from);
+            if (index < 0) {
+                if (joined == playerCount) {
+                    return;
+                }
+                index = joined++;
+                clients[index] = new Client(from);
+                System.out.println("player " + (index + 1) + " joined from " + from);
             }
-            Image itemImage = ((ImageIcon) imageLoader.getImage(key)).getImage();
-            g.drawImage(itemImage, item.getX(), item.getY(), this);
-        });
-
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(30f));
-        g.drawString("SCORE: " + Constants.scoreManager.getScore(), 700, 60);
-
-        // HISCORE
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(30f));
-        g.drawString("HISCORE: " + Constants.scoreManager.getHighScore(), 300, 60);
-
-        // 残り自機数の描画
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(30f));
-        g.drawString("LIFE: " + player.getLife(), 80, 60);
-
-        // 星の描画
-        stars.forEach(star -> {
-            g.setColor(star.getColor());
-            g.fillRect(star.getX(), star.getY(), 1, 1);
-        });
+            sendBuffer.clear();
+            sendBuffer.put(CoopProtocol.WELCOME);
+            sendBuffer.put((byte) index);
+            sendBuffer.put((byte) playerCount);
+            sendBuffer.putLong(seed);
+            sendBuffer.putInt(startStage);
+            sendBuffer.flip();
+            shim.send(channel, sendBuffer, from);
+            if (joined == playerCount && world == null) {
+                world = new GameWorld(seed, startStage, GameParams.DEFAULT, playerCount);
+                windowStart = System.nanoTime();
+                System.out.println("all " + playerCount + " players joined, starting stage " + startStage);
+            }
+        } else if (type == CoopProtocol.INPUT) {
+            int index = in.get();
+            if (index < 0 || index >= joined || !clients[index].address.equals(from)) {
+                return;
+            }
+            Client client = clients[index];
+            int ackTick = in.getInt();
+            if (ackTick > client.ackTick) {
+                client.ackTick = ackTick;
+            }
+            int seq = in.getInt();
+            int count = Math.min(in.get(), CoopProtocol.INPUT_REDUNDANCY);
+            for (int k = 0; k < count; k++) {
+                int s = seq - k;
+                int bits = in.get();
+                if (s > client.processedSeq) {
+                    int slot = s & (INPUT_BUFFER - 1);
+                    client.inputSeqs[slot] = s;
+                    client.inputBits[slot] = bits;
+                }
+            }
+            if (seq > client.newestSeq) {
+                client.newestSeq = seq;
+            }
+        }
     }
-}
-class GameOverScreen extends Screen {
-    public GameOverScreen(Game game) {
-        super(game);
+
+    private int indexOf(SocketAddress address) {
+        for (int i = 0; i < joined; i++) {
+            if (clients[i].address.equals(address)) {
+                return i;
+            }
+        }
+        return -1;
     }
-    public void update() {
+
+    // 全員の入力で1tick進めて、全員に状態を送る
+    private void tick() throws IOException {
+        long start = System.nanoTime();
+        for (int p = 0; p < playerCount; p++) {
+            inputs[p] = clients[p].nextInput();
+        }
+        world.tick(inputs);
+        int tick = (int) world.getTickCount();
+        WorldSnapshot snapshot = history[tick % CoopProtocol.HISTORY];
+        world.capture(snapshot);
+        snapshot.tick = tick;
+        for (int p = 0; p < playerCount; p++) {
+            snapshot.set(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_INPUT_SEQ, p, clients[p].processedSeq);
+        }
+        int hash = snapshot.hash();
+
+        for (Client client : clients) {
+            // 受け取り済みの状態がまだ手元にあればそれとの差分、なければ全体を送る
+            WorldSnapshot baseline = null;
+            if (client.ackTick >= 0 && tick - client.ackTick < CoopProtocol.HISTORY) {
+                WorldSnapshot candidate = history[client.ackTick % CoopProtocol.HISTORY];
+                if (candidate.tick == client.ackTick) {
+                    baseline = candidate;
+                }
+            }
+            sendBuffer.clear();
+            sendBuffer.put(CoopProtocol.SNAPSHOT);
+            sendBuffer.putInt(tick);
+            sendBuffer.putInt(baseline == null ? -1 : baseline.tick);
+            sendBuffer.putInt(hash);
+            int flagsPosition = sendBuffer.position();
+            sendBuffer.put((byte) 0);
+            if (!CoopProtocol.writeSnapshot(sendBuffer, snapshot, baseline)) {
+                sendBuffer.put(flagsPosition, CoopProtocol.TRUNCATED);
+                client.truncatedSnapshots++;
+            }
+            sendBuffer.flip();
+            int bytes = sendBuffer.remaining();
+            shim.send(channel, sendBuffer, client.address);
+            client.bytesSent += bytes;
+            client.windowBytes += bytes;
+            client.snapshots++;
+            if (baseline == null) {
+                client.fullSnapshots++;
+            }
+        }
+        shim.flush(channel);
+        tickTimes.record(System.nanoTime() - start);
+    }
+
+    // tickの処理時間とクライアントごとの帯域を表示して、集計をやり直す
+    void report(PrintStream out, long now) {
+        double seconds = (now - windowStart) / 1e9;
+        out.printf(Locale.ROOT, "tick %d  time p50 %.3f ms  p99 %.3f ms  max %.3f ms  dropped packets %d%n",
+                world == null ? 0 : world.getTickCount(), tickTimes.getPercentile(0.5) / 1e6, tickTimes.getPercentile(0.99) / 1e6,
+                tickTimes.getMax() / 1e6, shim.getDropped());
+        for (int p = 0; p < joined; p++) {
+            Client client = clients[p];
+            out.printf(Locale.ROOT, "  player %d  %.1f KB/s  avg %d B/snapshot  snapshots %d (full %d, truncated %d)  input backlog max %d%n",
+                    p + 1, client.windowBytes / seconds / 1024, client.snapshots == 0 ? 0 : client.bytesSent / client.snapshots,
+                    client.snapshots, client.fullSnapshots, client.truncatedSnapshots, client.windowMaxBacklog);
+            client.windowBytes = 0;
+            client.windowMaxBacklog = 0;
+        }
+        tickTimes.clear();
+        windowStart = now;
     }
-    public void render() {
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : CoopProtocol.DEFAULT_PORT;
+        int players = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int stage = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        CoopServer server = new CoopServer(port, players, stage);
+        System.out.println("waiting for " + players + " players on port " + server.getPort());
+        server.run();
     }
 }
-class GameClearScreen extends Screen {
-    public GameClearScreen(Game game) {
-        super(game);
+
+// 協力プレイのクライアント
+// 毎tick自分の入力をサーバーに送り、届いた状態を手元のGameWorldに反映する (このGameWorldはシミュレーションせず、表示と予測にだけ使う)
+// 自分の自機は、サーバーがまだ処理していない入力を届いた状態に重ねて動かしておき、入力の遅延を隠す
+// 状態が届かなかったtickは、敵機・弾・アイテムを速度のまま進めておく
+// (ゲームループのスレッドだけから使う)
+class CoopClient {
+    // 入力を覚えておく数 (2のべき乗、サーバーがまだ処理していない入力を重ねるのに使う)
+    private static final int INPUT_HISTORY = 64;
+    // JOINを送り直す間隔
+    private static final long JOIN_RETRY_MILLIS = 200;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SocketAddress server;
+    private final NetworkShim shim;
+    private GameWorld world;
+    private int playerIndex;
+    private final WorldSnapshot[] received = new WorldSnapshot[CoopProtocol.HISTORY];
+    // 復元できた最新の状態のtick
+    private int latestTick = -1;
+    // 行を省かずに復元できた最新の状態のtick (サーバーに返して、次の差分の基準にしてもらう)
+    private int ackTick = -1;
+    private final int[] inputHistory = new int[INPUT_HISTORY];
+    private int inputSeq = 0;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(CoopProtocol.MAX_PACKET);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(64);
+    // 統計
+    private long bytesReceived = 0;
+    private long snapshots = 0;
+    private long fullSnapshots = 0;
+    private long truncatedSnapshots = 0;
+    private long hashMismatches = 0;
+    // 範囲外の番号があって捨てた数
+    private long invalidSnapshots = 0;
+    // サーバーがまだ処理していなかった入力の数 (予測で重ねたtick数)
+    private int predictedTicks = 0;
+
+    public CoopClient(SocketAddress server) throws IOException {
+        this.server = server;
+        for (int i = 0; i < received.length; i++) {
+            received[i] = new WorldSnapshot();
+        }
+        shim = new NetworkShim(System.nanoTime());
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    // "host:port" (ポートを省略した時は既定のポート)
+    static SocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(address, CoopProtocol.DEFAULT_PORT);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    // サーバーに参加して、自機の番号とゲームの設定を受け取る (届くまでJOINを送り直す)
+    public void connect(long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (System.nanoTime() < deadline) {
+            sendBuffer.clear();
+            sendBuffer.put(CoopProtocol.JOIN);
+            sendBuffer.put(CoopProtocol.VERSION);
+            sendBuffer.flip();
+            shim.send(channel, sendBuffer, server);
+            long retry = System.nanoTime() + JOIN_RETRY_MILLIS * 1_000_000L;
+            while (System.nanoTime() < retry) {
+                shim.flush(channel);
+                selector.select(Math.max(1, Math.min(JOIN_RETRY_MILLIS, (shim.nextDueNanos() - System.nanoTime()) / 1_000_000)));
+                selector.selectedKeys().clear();
+                receiveBuffer.clear();
+                if (channel.receive(receiveBuffer) == null) {
+                    continue;
+                }
+                receiveBuffer.flip();
+                if (receiveBuffer.remaining() >= 15 && receiveBuffer.get() == CoopProtocol.WELCOME) {
+                    playerIndex = receiveBuffer.get();
+                    int playerCount = receiveBuffer.get();
+                    long seed = receiveBuffer.getLong();
+                    int stage = receiveBuffer.getInt();
+                    world = new GameWorld(seed, stage, GameParams.DEFAULT, playerCount);
+                    world.setLocalPlayer(playerIndex);
+                    return;
+                }
+            }
+        }
+        throw new IOException("no response from " + server);
     }
-    public void update() {
+
+    // 接続したクライアントを作る (失敗した時は閉じてから投げる)
+    static CoopClient open(SocketAddress server, long timeoutMillis) throws IOException {
+        CoopClient client = new CoopClient(server);
+        try {
+            client.connect(timeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    // 1tick分の入力を送り、届いた状態を反映する
+    public void tick(int input) {
+        try {
+            inputSeq++;
+            inputHistory[inputSeq & (INPUT_HISTORY - 1)] = input;
+            sendInput();
+            WorldSnapshot newest = receiveSnapshots();
+            Player own = world.getPlayer();
+            if (newest != null) {
+                int previousX = own.getX();
+                int previousY = own.getY();
+                world.restore(newest);
+                // 補間は予測していた位置から始める
+                own.setX(previousX);
+                own.setY(previousY);
+                own.savePosition();
+                own.setX(newest.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_X, playerIndex));
+                own.setY(newest.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_Y, playerIndex));
+                // サーバーがまだ処理していない入力を重ねる
+                int processed = newest.get(WorldSnapshot.PLAYERS, WorldSnapshot.PLAYER_INPUT_SEQ, playerIndex);
+                predictedTicks = Math.min(inputSeq - processed, INPUT_HISTORY);
+                if (own.isAlive()) {
+                    for (int seq = inputSeq - predictedTicks + 1; seq <= inputSeq; seq++) {
+                        GameWorld.movePlayer(own, inputHistory[seq & (INPUT_HISTORY - 1)]);
+                    }
+                }
+            } else {
+                world.extrapolate();
+                if (own.isAlive()) {
+                    GameWorld.movePlayer(own, input);
+                }
+            }
+            shim.flush(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
-    public void render() {
+
+    // 直近の入力をまとめて送る (受け取った最新の状態のtickも一緒に返す)
+    private void sendInput() throws IOException {
+        int count = Math.min(inputSeq, CoopProtocol.INPUT_REDUNDANCY);
+        sendBuffer.clear();
+        sendBuffer.put(CoopProtocol.INPUT);
+        sendBuffer.put((byte) playerIndex);
+        sendBuffer.putInt(ackTick);
+        sendBuffer.putInt(inputSeq);
+        sendBuffer.put((byte) count);
+        for (int k = 0; k < count; k++) {
+            sendBuffer.put((byte) inputHistory[(inputSeq - k) & (INPUT_HISTORY - 1)]);
+        }
+        sendBuffer.flip();
+        shim.send(channel, sendBuffer, server);
     }
-}
-class HighScoreScreen extends Screen {
-    ScoreManager scoreManager = new ScoreManager();
-    InputHandler inputHandler;
 
-    public HighScoreScreen(Game game) {
-        super(game);
-        inputHandler = new InputHandler();
-        game.addKeyListener(inputHandler);
+    // 届いている状態を全て復元し、一番新しいものを返す (なければnull)
+    private WorldSnapshot receiveSnapshots() throws IOException {
+        WorldSnapshot newest = null;
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
+                return newest;
+            }
+            receiveBuffer.flip();
+            bytesReceived += receiveBuffer.remaining();
+            try {
+                if (receiveBuffer.get() != CoopProtocol.SNAPSHOT) {
+                    continue;
+                }
+                int tick = receiveBuffer.getInt();
+                int baseTick = receiveBuffer.getInt();
+                int hash = receiveBuffer.getInt();
+                boolean truncated = (receiveBuffer.get() & CoopProtocol.TRUNCATED) != 0;
+                // 古い状態や、基準の状態を持っていない差分は使えない
+                if (tick <= latestTick) {
+                    continue;
+                }
+                WorldSnapshot baseline = null;
+                if (baseTick >= 0) {
+                    baseline = received[baseTick % CoopProtocol.HISTORY];
+                    if (baseline.tick != baseTick) {
+                        continue;
+                    }
+                }
+                WorldSnapshot snapshot = received[tick % CoopProtocol.HISTORY];
+                if (snapshot == baseline) {
+                    continue;
+                }
+                snapshot.tick = -1;
+                CoopProtocol.readSnapshot(receiveBuffer, baseline, snapshot);
+                // 復元を間違えた状態は捨てる (基準にも返答にも使わないので、サーバーは前の基準か全体で送り直す)
+                if (!truncated && snapshot.hash() != hash) {
+                    hashMismatches++;
+                    continue;
+                }
+                if (!world.canRestore(snapshot)) {
+                    invalidSnapshots++;
+                    continue;
+                }
+                // 行を省いた状態はサーバーの状態と違うので、表示にだけ使う
+                if (truncated) {
+                    truncatedSnapshots++;
+                } else {
+                    snapshot.tick = tick;
+                    ackTick = tick;
+                }
+                latestTick = tick;
+                snapshots++;
+                if (baseline == null) {
+                    fullSnapshots++;
+                }
+                newest = snapshot;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                // 壊れたパケットは捨てる
+            }
+        }
     }
-    public void update() {
-        // スペースキーを押したらタイトル画面へ
-        if (inputHandler.isFirePressed()) {
-            game.screen = new TitleScreen(game);
-            game.setScreen(game.screen);
-            game.screen.setBackground(Color.BLACK);
-            game.getContentPane().add(game.screen);
-            // thisを破棄
-            game.remove(this);
+
+    public void close() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
-    public void render() {
-        paint(game.getGraphics());
+
+    // getWorld
+    public GameWorld getWorld() {
+        return world;
     }
-    public void paint(Graphics g) {
-        // 画面を黒で塗りつぶす
-        g.fillRect(0, 0, Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT);
 
-        // 星の描画
-        stars.forEach(star -> {
-            g.setColor(star.getColor());
-            g.fillRect(star.getX(), star.getY(), 1, 1);
-        });
+    // getPlayerIndex
+    public int getPlayerIndex() {
+        return playerIndex;
+    }
 
-        // タイトルを白文字で表示
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(50f));
-        g.drawString("High Score", 400, 300);
+    // 統計の1行
+    public String describe() {
+        return String.format(Locale.ROOT, "player %d  received %d KB  snapshots %d (full %d, truncated %d)  hash mismatches %d  invalid %d  predicted ticks %d",
+                playerIndex + 1, bytesReceived / 1024, snapshots, fullSnapshots, truncatedSnapshots, hashMismatches, invalidSnapshots, predictedTicks);
+    }
+}
 
-        // 　ハイスコアを表示
-        g.setColor(Color.WHITE);
-        g.setFont(g.getFont().deriveFont(30f));
-        g.drawString("1st: " + scoreManager.getHighScores().get(0), 400, 400);
-        g.drawString("2nd: " + scoreManager.getHighScores().get(1), 400, 450);
-        g.drawString("3rd: " + scoreManager.getHighScores().get(2), 400, 500);
+// 協力プレイをループバックで確かめる (サーバーと人数分のクライアントを1つのプロセスで動かし、ボットに操作させる)
+// 遅延とパケットロスは -Dakari.netLatency などで指定する (サーバーとクライアントの両方の送信にかかる)
+// java -Djava.awt.headless=true -Dakari.netLatency=40 -Dakari.netLoss=5 -cp . CoopLoopback [人数] [秒数]
+class CoopLoopback {
+    public static void main(String[] args) throws Exception {
+        int players = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        CoopServer server = new CoopServer(0, players, 1);
+        Thread serverThread = new Thread(server, "CoopServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        SocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+        CoopClient[] clients = new CoopClient[players];
+        Bot[] bots = new Bot[players];
+        for (int p = 0; p < players; p++) {
+            clients[p] = new CoopClient(address);
+            clients[p].connect(5000);
+            bots[p] = new ScriptedBot();
+        }
+
+        long tickNanos = 1_000_000_000L / Constants.TICK_RATE;
+        long next = System.nanoTime();
+        long end = next + seconds * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            for (int p = 0; p < players; p++) {
+                clients[p].tick(bots[p].nextInput(clients[p].getWorld()));
+            }
+            next += tickNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        for (CoopClient client : clients) {
+            System.out.println(client.describe());
+            client.close();
+        }
+        server.stop();
+        serverThread.join();
     }
 }
+
 class Player {
     private int x, y;
+    // 補間用の前回tickの位置
+    private int prevX, prevY;
     private int speed = 5;
     private int life = 5;
     private int width;
@@ -996,6 +5567,8 @@ class Player {
     public Player(int startX, int startY) {
         this.x = startX;
         this.y = startY;
+        this.prevX = this.x;
+        this.prevY = this.y;
     }
 
     public void moveLeft() {
@@ -1027,8 +5600,18 @@ class Player {
         return y;
     }
 
-    // collidesWith
-    public boolean collidesWith(Enemy enemy) {
+    // setX
+    public void setX(int x) {
+        this.x = x;
+    }
+
+    // setY
+    public void setY(int y) {
+        this.y = y;
+    }
+
+    // collidesWithEnemy
+    public boolean collidesWithEnemy(int enemyX, int enemyY, int enemyWidth, int enemyHeight) {
         // 自機と敵機の当たり判定
         return false;
     }
@@ -1039,13 +5622,10 @@ class Player {
         return false;
     }
 
-    // collidesWith
-    public boolean collidesWith(Item item) {
+    // collidesWithItem
+    public boolean collidesWithItem(int itemX, int itemY, int itemWidth, int itemHeight) {
         // 自機とアイテムの当たり判定
-        if(x < item.getX() + item.getWidth() && x + width > item.getX() && y < item.getY() + item.getHeight() && y + height > item.getY()) {
-            return true;
-        }
-        return false;
+        return CollisionWorld.overlaps(x, y, width, height, itemX, itemY, itemWidth, itemHeight);
     }
 
     // 描画処理などその他のメソッド
@@ -1101,179 +5681,50 @@ class Player {
     public void setBang(int bang) {
         this.bang = bang;
     }
-}
-
-class Enemy {
-    private int x, y;
-    private boolean alive = true;
-    private int width;
-    private int height;
-    private int speed = 5;
-    // bang
-    private int bang = 0;
-    ImageKey key;
-
-    public Enemy(int startX, int startY, ImageKey key) {
-        this.x = startX;
-        this.y = startY;
-        this.key = key;
-    }
-
-    public void move() {
-        // 敵機の動きのロジック
-
-    }
-
-    public void hit() {
-        // 敵機が攻撃を受けた時の処理
-        alive = false;
-        bang = 50;
-    }
-
-    // 描画処理などその他のメソッド
-
-    public void setWidth(int width) {
-        this.width = width;
-    }
-
-    public int getWidth() {
-        return width;
-    }
-
-    public void setHeight(int height) {
-        this.height = height;
-    }
-
-    public int getHeight() {
-        return height;
-    }
-
-    // isAlive
-    public boolean isAlive() {
-        return alive;
-    }
-
-    // getX
-    public int getX() {
-        return x;
-    }
-
-    // setX
-    public void setX(int x) {
-        this.x = x;
-    }
-
-    // getY
-    public int getY() {
-        return y;
-    }
-
-    // setY
-    public void setY(int y) {
-        this.y = y;
-    }
-
-    // isVisible
-    public boolean isVisible() {
-        return true;
-    }
-
-    // getSpeed
-    public int getSpeed() {
-        return speed;
-    }
-
-    // setSpeed
-    public void setSpeed(int speed) {
-        this.speed = speed;
-    }
-
-    // bang
-    public int getBang() {
-        return bang;
-    }
-
-    public void setBang(int bang) {
-        this.bang = bang;
-    }
-
-    // key
-    public ImageKey getKey() {
-        return key;
-    }
-}
-
-class EnemyMissile {
-    private int x, y;
-    private int speed = 3;
-    private boolean visible;
-    private int width;
-    private int height;
-
-    public EnemyMissile(int startX, int startY) {
-        this.x = startX;
-        this.y = startY;
-        this.visible = true;
-    }
-
-    public void move() {
-        y += speed;
-        if (y > Constants.SCREEN_HEIGHT) {
-            visible = false;
-        }
-    }
-
-    public void hit() {
-        // ミサイルが攻撃を受けた時の処理
-        visible = false;
-    }
-
-    // getX
-    public int getX() {
-        return x;
-    }
 
-    // getY
-    public int getY() {
-        return y;
+    // 現在位置を前回位置として保存
+    public void savePosition() {
+        prevX = x;
+        prevY = y;
     }
 
-    // isVisible
-    public boolean isVisible() {
-        return visible;
+    // getPrevX
+    public int getPrevX() {
+        return prevX;
     }
 
-    // collidesWith
-    public boolean collidesWith(Player player) {
-        // ミサイルと自機の当たり判定
-        if (x < player.getX() + player.getWidth() && x + width > player.getX() && y < player.getY() + player.getHeight() && y + height > player.getY()) {
-            return true;
-        }
-        return false;
+    // getPrevY
+    public int getPrevY() {
+        return prevY;
     }
-
-    // 描画処理などその他のメソッド
 }
 
 class Boss {
     private int x, y;
+    // 補間用の前回tickの位置
+    private int prevX, prevY;
     private boolean alive = true;
     private int width;
     private int height;
     private int speed = 5;
     // speedX
-    private int speedX = 5;
+    private int speedX;
     // speedY
-    private int speedY = 5;
-    private int life = 10;
+    private int speedY;
+    private int life;
     // bang
     private int bang = 0;
     ImageKey key;
 
-    public Boss(int startX, int startY, ImageKey key) {
+    public Boss(int startX, int startY, ImageKey key, int life, int speedX, int speedY) {
         this.x = startX;
         this.y = startY;
+        this.prevX = this.x;
+        this.prevY = this.y;
         this.key = key;
+        this.life = life;
+        this.speedX = speedX;
+        this.speedY = speedY;
     }
 
     public void move() {
@@ -1324,6 +5775,11 @@ class Boss {
         return alive;
     }
 
+    // setAlive
+    public void setAlive(boolean alive) {
+        this.alive = alive;
+    }
+
     // getX
     public int getX() {
         return x;
@@ -1361,178 +5817,336 @@ class Boss {
 
     // bang
     public int getBang() {
-        return bang;
-    }
-
-    public void setBang(int bang) {
-        this.bang = bang;
-    }
-
-    // key
-    public ImageKey getKey() {
-        return key;
-    }
-}
-class Missile {
-    private int x, y;
-    private int speed = 10;
-    private boolean visible;
-    private int width;
-    private int height;
-
-    public Missile(int startX, int startY) {
-        this.x = startX;
-        this.y = startY;
-        this.visible = true;
-        Constants.missileFinalTime = (int) System.currentTimeMillis();
-    }
-
-    public void move() {
-        y -= speed;
-        if (y < 0) {
-            visible = false;
-        }
-    }
-
-    public void hit() {
-        // ミサイルが攻撃を受けた時の処理
-        visible = false;
-    }
-
-    // getX
-    public int getX() {
-        return x;
-    }
-
-    // getY
-    public int getY() {
-        return y;
-    }
-
-    // isVisible
-    public boolean isVisible() {
-        return visible;
-    }
-
-    // collidesWith
-    public boolean collidesWith(Enemy enemy) {
-        // ミサイルと敵機の当たり判定
-        if(x < enemy.getX() + enemy.getWidth() && x + width > enemy.getX() && y < enemy.getY() + enemy.getHeight() && y + height > enemy.getY()) {
-            return true;
-        }
-        return false;
-    }
-
-    // collidesWith
-    public boolean collidesWith(Boss boss) {
-        // ミサイルとボス機の当たり判定
-        if(x < boss.getX() + boss.getWidth() && x + width > boss.getX() && y < boss.getY() + boss.getHeight() && y + height > boss.getY()) {
-            return true;
-        }
-        return false;
+        return bang;
     }
-    // 描画処理などその他のメソッド
-    // setWidth
-    public void setWidth(int width) {
-        this.width = width;
+
+    public void setBang(int bang) {
+        this.bang = bang;
     }
 
-    // getWidth
-    public int getWidth() {
-        return width;
+    // key
+    public ImageKey getKey() {
+        return key;
     }
 
-    // setHeight
-    public void setHeight(int height) {
-        this.height = height;
+    // 現在位置を前回位置として保存
+    public void savePosition() {
+        prevX = x;
+        prevY = y;
     }
 
-    // getHeight
-    public int getHeight() {
-        return height;
+    // getPrevX
+    public int getPrevX() {
+        return prevX;
     }
 
+    // getPrevY
+    public int getPrevY() {
+        return prevY;
+    }
 }
-class Item {
-    private int x, y;
-    private ItemType type; // アイテムの種類を示す列挙型
-    private boolean visible;
-    private int speed = 5;
-    private int width;
-    private int height;
-    private boolean isAlive = true;
+// 構造体配列 (SoA) のエンティティストア
+// 敵機・弾・アイテムの各成分をプリミティブ配列で持ち、先頭から詰めて保持する
+// 削除は末尾との入れ替えで行い、容量は固定なのでステージ中にメモリを確保しない
+class EntityStore {
+    // flagsのビット
+    public static final int ALIVE = 1;
+
+    public final int[] x;
+    public final int[] y;
+    // 補間用の前回tickの位置
+    public final int[] prevX;
+    public final int[] prevY;
+    public final int[] vx;
+    public final int[] vy;
+    public final int[] width;
+    public final int[] height;
+    public final int[] flags;
+    // ImageKeyのordinal
+    public final int[] sprite;
+    // 種類 (アイテムはItemTypeのordinal)
+    public final int[] type;
+    // 爆発アニメーションの残りtick数
+    public final int[] bang;
+    private int count = 0;
+    // 同時に存在した数の最大値
+    private int highWaterMark = 0;
+    // 容量が足りなくて追加できなかった回数
+    private long exhaustedCount = 0;
+
+    public EntityStore(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        prevX = new int[capacity];
+        prevY = new int[capacity];
+        vx = new int[capacity];
+        vy = new int[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        flags = new int[capacity];
+        sprite = new int[capacity];
+        type = new int[capacity];
+        bang = new int[capacity];
+    }
+
+    // 追加して番号を返す (容量が足りない場合は-1)
+    public int add(int startX, int startY, int w, int h, int speedX, int speedY, int spriteKey) {
+        if (count == x.length) {
+            exhaustedCount++;
+            return -1;
+        }
+        int i = count++;
+        x[i] = startX;
+        y[i] = startY;
+        prevX[i] = startX;
+        prevY[i] = startY;
+        vx[i] = speedX;
+        vy[i] = speedY;
+        width[i] = w;
+        height[i] = h;
+        flags[i] = ALIVE;
+        sprite[i] = spriteKey;
+        type[i] = 0;
+        bang[i] = 0;
+        if (count > highWaterMark) {
+            highWaterMark = count;
+        }
+        return i;
+    }
 
-    public Item(int x, int y, ItemType type) {
-        this.x = x;
-        this.y = y;
-        this.type = type;
+    // i番目を削除し、末尾の要素をi番目に移す
+    public void removeAt(int i) {
+        int last = --count;
+        if (i == last) {
+            return;
+        }
+        x[i] = x[last];
+        y[i] = y[last];
+        prevX[i] = prevX[last];
+        prevY[i] = prevY[last];
+        vx[i] = vx[last];
+        vy[i] = vy[last];
+        width[i] = width[last];
+        height[i] = height[last];
+        flags[i] = flags[last];
+        sprite[i] = sprite[last];
+        type[i] = type[last];
+        bang[i] = bang[last];
     }
 
-    public void applyEffect(Player player) {
-        // アイテムに応じた効果をプレイヤーに適用
+    public void clear() {
+        count = 0;
+    }
 
+    // 現在位置を前回位置として保存
+    public void savePositions() {
+        System.arraycopy(x, 0, prevX, 0, count);
+        System.arraycopy(y, 0, prevY, 0, count);
     }
 
-    // 描画処理などその他のメソッド
+    public boolean isAlive(int i) {
+        return (flags[i] & ALIVE) != 0;
+    }
 
-    public void setWidth(int width) {
-        this.width = width;
+    public void kill(int i) {
+        flags[i] &= ~ALIVE;
     }
 
-    public int getWidth() {
-        return width;
+    // i番目と矩形が重なっているか
+    public boolean overlaps(int i, int otherX, int otherY, int otherWidth, int otherHeight) {
+        return CollisionWorld.overlaps(x[i], y[i], width[i], height[i], otherX, otherY, otherWidth, otherHeight);
     }
 
-    public void setHeight(int height) {
-        this.height = height;
+    public int size() {
+        return count;
     }
 
-    public int getHeight() {
-        return height;
+    public int capacity() {
+        return x.length;
     }
 
-    // getX
-    public int getX() {
-        return x;
+    // getHighWaterMark
+    public int getHighWaterMark() {
+        return highWaterMark;
     }
 
-    // setX
-    public void setX(int x) {
-        this.x = x;
+    // getExhaustedCount
+    public long getExhaustedCount() {
+        return exhaustedCount;
     }
+}
 
-    // getY
-    public int getY() {
-        return y;
+// 当たり判定の空間分割 (画面サイズの一様グリッド)
+// 毎tick全てのオブジェクトを種類ごとに登録し直し、重なる可能性のあるものだけを返す
+class CollisionWorld {
+    public static final int LAYER_ENEMY = 0;
+    public static final int LAYER_BOSS = 1;
+    public static final int LAYER_MISSILE = 2;
+    public static final int LAYER_ENEMY_MISSILE = 3;
+    public static final int LAYER_ITEM = 4;
+    private static final int LAYERS = 5;
+
+    public static final int CELL_SIZE = 64;
+    public static final int COLUMNS = (Constants.SCREEN_WIDTH + CELL_SIZE - 1) / CELL_SIZE;
+    public static final int ROWS = (Constants.SCREEN_HEIGHT + CELL_SIZE - 1) / CELL_SIZE;
+
+    // セルごとの連結リストの先頭 (レイヤーごと)
+    private final int[][] cellHeads = new int[LAYERS][COLUMNS * ROWS];
+    // 連結リストのノード (1つのオブジェクトが複数のセルにまたがる場合は複数のノード)
+    private int[] nodeEntries = new int[256];
+    private int[] nodeNexts = new int[256];
+    private int nodeCount = 0;
+    // 登録されたオブジェクトの番号 (種類ごとのストア内の番号)
+    private int[] entries = new int[128];
+    private int[] entryStamps = new int[128];
+    private int entryCount = 0;
+    // 検索結果 (登録順)
+    private int[] results = new int[64];
+    private int stamp = 0;
+
+    public CollisionWorld() {
+        clear();
+    }
+
+    // 全ての登録を消す
+    public void clear() {
+        for (int[] heads : cellHeads) {
+            Arrays.fill(heads, -1);
+        }
+        nodeCount = 0;
+        entryCount = 0;
     }
-    // setY
-    public void setY(int y) {
-        this.y = y;
+
+    // ストアの全要素を登録する
+    public void addAll(int layer, EntityStore store) {
+        for (int i = 0; i < store.size(); i++) {
+            add(layer, i, store.x[i], store.y[i], store.width[i], store.height[i]);
+        }
     }
 
-    // isVisible
-    public boolean isVisible() {
-        return visible;
+    // オブジェクトを登録する (画面外のものは端のセルに入れる)
+    public void add(int layer, int entry, int x, int y, int width, int height) {
+        if (entryCount == entries.length) {
+            entries = Arrays.copyOf(entries, entryCount * 2);
+            entryStamps = Arrays.copyOf(entryStamps, entryCount * 2);
+        }
+        int index = entryCount++;
+        entries[index] = entry;
+        entryStamps[index] = 0;
+
+        int[] heads = cellHeads[layer];
+        int left = column(x);
+        int right = column(x + Math.max(width, 1) - 1);
+        int top = row(y);
+        int bottom = row(y + Math.max(height, 1) - 1);
+        for (int r = top; r <= bottom; r++) {
+            for (int c = left; c <= right; c++) {
+                if (nodeCount == nodeEntries.length) {
+                    nodeEntries = Arrays.copyOf(nodeEntries, nodeCount * 2);
+                    nodeNexts = Arrays.copyOf(nodeNexts, nodeCount * 2);
+                }
+                int cell = r * COLUMNS + c;
+                nodeEntries[nodeCount] = index;
+                nodeNexts[nodeCount] = heads[cell];
+                heads[cell] = nodeCount++;
+            }
+        }
     }
-    // getType
-    public ItemType getType() {
-        return type;
+
+    // 指定した範囲と同じセルにあるオブジェクトを検索し、件数を返す
+    // 結果は登録順に並んでいるので、getResultで取り出す
+    public int query(int layer, int x, int y, int width, int height) {
+        // 同じオブジェクトを2回数えないように検索ごとの印をつける
+        stamp++;
+        if (stamp == 0) {
+            Arrays.fill(entryStamps, 0);
+            stamp = 1;
+        }
+        int count = 0;
+        int[] heads = cellHeads[layer];
+        int left = column(x);
+        int right = column(x + Math.max(width, 1) - 1);
+        int top = row(y);
+        int bottom = row(y + Math.max(height, 1) - 1);
+        for (int r = top; r <= bottom; r++) {
+            for (int c = left; c <= right; c++) {
+                for (int node = heads[r * COLUMNS + c]; node != -1; node = nodeNexts[node]) {
+                    int index = nodeEntries[node];
+                    if (entryStamps[index] == stamp) {
+                        continue;
+                    }
+                    entryStamps[index] = stamp;
+                    if (count == results.length) {
+                        results = Arrays.copyOf(results, count * 2);
+                    }
+                    results[count++] = index;
+                }
+            }
+        }
+        // 従来のリスト順の判定と結果が変わらないように登録順に並べる
+        Arrays.sort(results, 0, count);
+        return count;
+    }
+
+    // 直前の検索結果のi番目
+    public int getResult(int i) {
+        return entries[results[i]];
+    }
+
+    // 別々のスレッドから同時に検索する時の検索結果 (スレッドごとに別のものを使う)
+    static class Query {
+        private int[] results = new int[64];
+    }
+
+    // queryと同じ検索を、結果をqueryResultに入れて行う
+    // 登録が終わった後なら、別々のQueryを使って複数のスレッドから同時に呼べる
+    public int query(Query queryResult, int layer, int x, int y, int width, int height) {
+        int[] found = queryResult.results;
+        int count = 0;
+        int[] heads = cellHeads[layer];
+        int left = column(x);
+        int right = column(x + Math.max(width, 1) - 1);
+        int top = row(y);
+        int bottom = row(y + Math.max(height, 1) - 1);
+        for (int r = top; r <= bottom; r++) {
+            for (int c = left; c <= right; c++) {
+                for (int node = heads[r * COLUMNS + c]; node != -1; node = nodeNexts[node]) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                        queryResult.results = found;
+                    }
+                    found[count++] = nodeEntries[node];
+                }
+            }
+        }
+        // 登録順に並べ、複数のセルにまたがるオブジェクトの重複を除く
+        Arrays.sort(found, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || found[unique - 1] != found[i]) {
+                found[unique++] = found[i];
+            }
+        }
+        return unique;
     }
-    // getSpeed
-    public int getSpeed() {
-        return speed;
+
+    // queryResultの検索結果のi番目
+    public int getResult(Query queryResult, int i) {
+        return entries[queryResult.results[i]];
     }
 
-    // isAlive
-    public boolean isAlive() {
-        return isAlive;
+    // 2つの矩形が重なっているか
+    public static boolean overlaps(int ax, int ay, int aw, int ah, int bx, int by, int bw, int bh) {
+        return ax < bx + bw && ax + aw > bx && ay < by + bh && ay + ah > by;
     }
 
-    // setAlive
-    public void setAlive(boolean isAlive) {
-        this.isAlive = isAlive;
+    private static int column(int x) {
+        return Math.min(Math.max(x / CELL_SIZE, 0), COLUMNS - 1);
     }
 
+    private static int row(int y) {
+        return Math.min(Math.max(y / CELL_SIZE, 0), ROWS - 1);
+    }
 }
 
 // アイテムの種類を表す列挙型
@@ -1543,226 +6157,805 @@ enum ItemType {
     MISSILE_UPGRADE
 }
 
-class ScoreManager {
-    // score.datは3行のテキストファイル
-    private String fileName = "score.dat";
-    private int score = 0;
-    private List<Integer> highScores = new ArrayList<>();
+// スコアの記録 (名前・到達ステージ・日時)
+class ScoreEntry {
+    private final String name;
+    private final int stage;
+    private final int score;
+    private final long timestamp;
 
-    public ScoreManager() {
-        // ハイスコアの読み込み処理
-        loadHighScores();
+    public ScoreEntry(String name, int stage, int score, long timestamp) {
+        this.name = name;
+        this.stage = stage;
+        this.score = score;
+        this.timestamp = timestamp;
+    }
+
+    // getName
+    public String getName() {
+        return name;
+    }
+
+    // getStage
+    public int getStage() {
+        return stage;
+    }
+
+    // getScore
+    public int getScore() {
+        return score;
     }
 
-    public void updateHighScore() {
-        // ハイスコアの更新処理
-        checkHighScore();
+    // getTimestamp
+    public long getTimestamp() {
+        return timestamp;
     }
+}
 
+// ハイスコアの管理
+// 全てのスコアを追記専用のログ (scores.log) に書き、メモリ上の順位表 (ScoreIndex) で上位N件と順位を引く
+// 複数の筐体が同じディスクのログを共有できるように、ログの読み書きは scores.log.lock のロックを取って行う
+// ファイルの読み書きは全てバックグラウンドのスレッドで行うので、画面側が待たされることはない
+class ScoreManager {
+    // 他のプロセスが追記したスコアを読み込む間隔
+    private static final long REFRESH_MILLIS = 1000;
+    // 終了時に保存を待つ時間
+    private static final long FLUSH_TIMEOUT_MILLIS = 2000;
+    // ログに残す件数 (これの2倍を超えたら下位を捨てて詰め直す)
+    private static final int KEEP = Integer.getInteger("akari.leaderboard.keep", 1_000_000);
+
+    private final ScoreLog log;
+    // 詰め直しの時は別に作って差し替える
+    private volatile ScoreIndex index = new ScoreIndex();
+    private volatile int highScore = 0;
+    private volatile boolean loaded = false;
+    // 書き込み待ちのスコア
+    private final List<ScoreEntry> pending = new ArrayList<>();
+    private long submitted = 0;
+    private long written = 0;
+
+    private static class Holder {
+        static final ScoreManager INSTANCE = new ScoreManager(new File("scores.log"), new File("score.dat"));
+    }
+
+    // 全画面で共有するインスタンス
+    public static ScoreManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // legacyFileは以前の3行のscore.dat (ログがまだない時に取り込む)
+    public ScoreManager(File logFile, File legacyFile) {
+        log = new ScoreLog(logFile, legacyFile);
+        Thread thread = new Thread(this::run, "ScoreManager");
+        thread.setDaemon(true);
+        thread.start();
+        // 終了時に書き込み待ちのスコアを書き出す
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "ScoreFlush"));
+    }
+
+    // スコアを登録する (ファイルへの書き込みは待たない)
+    public synchronized void submit(String name, int stage, int score) {
+        pending.add(new ScoreEntry(name, stage, score, System.currentTimeMillis()));
+        submitted++;
+        notifyAll();
+    }
+
+    // 1位のスコア
     public int getHighScore() {
-        // ハイスコアを文字列で返す
-        return highScores.get(0);
+        return highScore;
     }
 
-    public void addScore(int value) {
-        score += value;
+    // offset位から最大page.length件を取得し、取得した件数を返す (offsetは0から)
+    public int getTop(int offset, ScoreEntry[] page) {
+        return index.getTop(offset, page);
     }
 
-    public void checkHighScore() {
-        // 現在のスコアがハイスコアかどうか確認し、必要に応じて更新
-        if (score > highScores.get(0)) {
-            highScores.set(2, highScores.get(1));
-            highScores.set(1, highScores.get(0));
-            highScores.set(0, score);
-            saveHighScores();
-        } else if (score > highScores.get(1)) {
-            highScores.set(2, highScores.get(1));
-            highScores.set(1, score);
-            saveHighScores();
-        } else if (score > highScores.get(2)) {
-            highScores.set(2, score);
-            saveHighScores();
-        }
-    }
-
-    public void saveHighScores() {
-        // ハイスコアをファイルに保存
-        // ファイルがなかったら作る
-        File file = new File(fileName);
-        if (!file.exists()) {
-            try {
-                file.createNewFile();
-                FileWriter fileWriter = new FileWriter(file);
-                fileWriter.write("0\n0\n0");
-                fileWriter.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    // このスコアの順位 (1から、同点は同じ順位)
+    public int getRank(int score) {
+        return index.countGreater(score) + 1;
+    }
+
+    // 登録されているスコアの件数
+    public int getEntryCount() {
+        return index.size();
+    }
+
+    // ログの読み込みが終わったか
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    private void run() {
+        List<ScoreEntry> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (pending.isEmpty() && loaded) {
+                    try {
+                        wait(REFRESH_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch.addAll(pending);
+                pending.clear();
             }
-        } else {
             try {
-                FileWriter fileWriter = new FileWriter(file);
-                for (int i = 0; i < highScores.size(); i++) {
-                    fileWriter.write(highScores.get(i) + "\n");
+                // 他のプロセスの追記を読み込み、このプロセスのスコアをまとめて追記
+                log.sync(index, batch);
+                if (log.getRecordCount() > (long) KEEP * 2 || log.getCorruptCount() > 0) {
+                    index = log.compact(index, KEEP);
                 }
-                fileWriter.close();
+                synchronized (this) {
+                    written += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
             } catch (IOException e) {
+                // 書けなかったスコアは次の同期で書き直す
                 e.printStackTrace();
+                try {
+                    Thread.sleep(REFRESH_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
             }
+            highScore = index.getTopScore();
+            loaded = true;
         }
     }
 
-    public void loadHighScores() {
-        // ハイスコアをファイルから読み込み
-        // ファイルがなかったら作る
-        File file = new File(fileName);
-        if (!file.exists()) {
+    // 書き込み待ちのスコアが書き終わるまで待つ
+    public synchronized void flush() {
+        long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+        while (written < submitted) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return;
+            }
             try {
-                file.createNewFile();
-                FileWriter fileWriter = new FileWriter(file);
-                fileWriter.write("0\n0\n0");
-                fileWriter.close();
-                highScores.add(0);
-                highScores.add(0);
-                highScores.add(0);
-            } catch (IOException e) {
-                e.printStackTrace();
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
-        } else {
+        }
+    }
+}
+
+// 追記専用のスコアのログ
+// ヘッダー (マジックナンバー・バージョン・世代) の後に40バイトの固定長レコードが並ぶ
+// レコード: スコア(4) ステージ(4) 日時(8) 名前(UTF-8で20バイト) CRC32(4)
+// 追記と詰め直しは排他ロック、読み込みは共有ロックを取って行う (ロックはログとは別のファイルで取る)
+// 詰め直すと世代が変わるので、他のプロセスは読み込み済みの位置を捨てて最初から読み直す
+class ScoreLog {
+    private static final int MAGIC = 0x414B534C; // "AKSL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+    private static final int NAME_SIZE = 20;
+    // 一度に読み込むレコード数
+    private static final int READ_BATCH = 4096;
+
+    private final Path path;
+    private final Path tempPath;
+    private final Path lockPath;
+    private final File legacyFile;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * READ_BATCH);
+    private final CRC32 crc = new CRC32();
+    // 読み込み済みの世代と位置
+    private long generation = -1;
+    private long readPosition = HEADER_SIZE;
+    private long corruptCount = 0;
+
+    public ScoreLog(File file, File legacyFile) {
+        this.path = file.toPath();
+        this.tempPath = new File(file.getPath() + ".tmp").toPath();
+        this.lockPath = new File(file.getPath() + ".lock").toPath();
+        this.legacyFile = legacyFile;
+    }
+
+    // 新しいレコードを読み込んでindexに加え、appendを追記する
+    public void sync(ScoreIndex index, List<ScoreEntry> append) throws IOException {
+        boolean write = !append.isEmpty() || !Files.exists(path);
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, !write);
             try {
-                FileReader fileReader = new FileReader(file);
-                BufferedReader bufferedReader = new BufferedReader(fileReader);
-                String line;
-                while ((line = bufferedReader.readLine()) != null) {
-                    highScores.add(Integer.parseInt(line));
+                if (write) {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                        if (channel.size() < HEADER_SIZE) {
+                            create(channel);
+                        }
+                        long end = readRecords(channel, index);
+                        // 途中で落ちたプロセスが残した半端なレコードを切り捨てる
+                        if (channel.size() != end) {
+                            channel.truncate(end);
+                        }
+                        appendRecords(channel, end, append);
+                        index.insertAll(append);
+                        readPosition = end + (long) append.size() * RECORD_SIZE;
+                    }
+                } else {
+                    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                        readRecords(channel, index);
+                    }
                 }
-                bufferedReader.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            } finally {
+                lock.release();
             }
         }
     }
 
-    // ハイスコアの取得や表示に関連するメソッド
-    // getScore
-    public int getScore() {
-        return score;
+    // ログを作る (以前のscore.datがあれば取り込む)
+    private void create(FileChannel channel) throws IOException {
+        generation = 0;
+        readPosition = HEADER_SIZE;
+        channel.truncate(0);
+        writeHeader(channel, generation);
+        if (legacyFile != null && legacyFile.exists()) {
+            List<ScoreEntry> legacy = new ArrayList<>();
+            for (String line : Files.readAllLines(legacyFile.toPath(), StandardCharsets.UTF_8)) {
+                try {
+                    int score = Integer.parseInt(line.trim());
+                    if (score > 0) {
+                        legacy.add(new ScoreEntry("---", 0, score, legacyFile.lastModified()));
+                    }
+                } catch (NumberFormatException e) {
+                    // 壊れた行は読み飛ばす
+                }
+            }
+            appendRecords(channel, HEADER_SIZE, legacy);
+        }
+        channel.force(true);
+    }
+
+    private void writeHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    // 読み込み済みの位置から最後の完全なレコードまで読み、その終わりの位置を返す
+    private long readRecords(FileChannel channel, ScoreIndex index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // ヘッダーを全部読むまで続ける
+        }
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("not a score log: " + path);
+        }
+        long fileGeneration = header.getLong();
+        if (fileGeneration != generation) {
+            // 詰め直されたので最初から読み直す
+            index.clear();
+            generation = fileGeneration;
+            readPosition = HEADER_SIZE;
+            corruptCount = 0;
+        }
+        long end = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        List<ScoreEntry> entries = new ArrayList<>();
+        while (readPosition < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - readPosition));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, readPosition + buffer.position()) < 0) {
+                    throw new IOException("score log truncated: " + path);
+                }
+            }
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                ScoreEntry entry = decode(buffer);
+                if (entry != null) {
+                    entries.add(entry);
+                } else {
+                    corruptCount++;
+                }
+            }
+            readPosition += buffer.limit();
+            index.insertAll(entries);
+            entries.clear();
+        }
+        return end;
+    }
+
+    private void appendRecords(FileChannel channel, long position, List<ScoreEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(entries.size() * RECORD_SIZE);
+        for (ScoreEntry entry : entries) {
+            encode(entry, out);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            position += channel.write(out, position);
+        }
+        channel.force(false);
+    }
+
+    private void encode(ScoreEntry entry, ByteBuffer out) {
+        int start = out.position();
+        out.putInt(entry.getScore());
+        out.putInt(entry.getStage());
+        out.putLong(entry.getTimestamp());
+        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+        // 20バイトに収まらない名前は文字単位で切り詰める
+        String trimmed = entry.getName();
+        while (name.length > NAME_SIZE) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+            name = trimmed.getBytes(StandardCharsets.UTF_8);
+        }
+        out.put(name);
+        for (int i = name.length; i < NAME_SIZE; i++) {
+            out.put((byte) 0);
+        }
+        crc.reset();
+        crc.update(out.array(), start, RECORD_SIZE - 4);
+        out.putInt((int) crc.getValue());
+    }
+
+    // CRCが合わないレコードはnullを返す
+    private ScoreEntry decode(ByteBuffer in) {
+        int start = in.position();
+        crc.reset();
+        crc.update(in.array(), start, RECORD_SIZE - 4);
+        int score = in.getInt();
+        int stage = in.getInt();
+        long timestamp = in.getLong();
+        byte[] name = new byte[NAME_SIZE];
+        in.get(name);
+        int checksum = in.getInt();
+        if (checksum != (int) crc.getValue()) {
+            return null;
+        }
+        int length = 0;
+        while (length < NAME_SIZE && name[length] != 0) {
+            length++;
+        }
+        return new ScoreEntry(new String(name, 0, length, StandardCharsets.UTF_8), stage, score, timestamp);
+    }
+
+    // 上位keep件だけを残したログに詰め直し、その内容の新しい順位表を返す
+    public ScoreIndex compact(ScoreIndex index, int keep) throws IOException {
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    readRecords(channel, index);
+                }
+                ScoreEntry[] kept = new ScoreEntry[Math.min(keep, index.size())];
+                index.getTop(0, kept);
+                List<ScoreEntry> entries = Arrays.asList(kept);
+                long nextGeneration = generation + 1;
+                // 一時ファイルに書いてから置き換える
+                try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeHeader(channel, nextGeneration);
+                    appendRecords(channel, HEADER_SIZE, entries);
+                    channel.force(true);
+                }
+                try {
+                    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                ScoreIndex compacted = new ScoreIndex();
+                compacted.insertAll(entries);
+                generation = nextGeneration;
+                readPosition = HEADER_SIZE + (long) kept.length * RECORD_SIZE;
+                corruptCount = 0;
+                return compacted;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // ログの中のレコード数
+    public long getRecordCount() {
+        return (readPosition - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    // CRCが合わなかったレコード数
+    public long getCorruptCount() {
+        return corruptCount;
+    }
+}
+
+// スコアの順位表 (順序統計木のtreap)
+// スコアの高い順 (同点は日時の古い順) に並べ、部分木の大きさを持つので
+// 挿入・k位の取得・順位の計算がO(log n)でできる
+// ノードはEntityStoreと同じく配列で持つ (0番は空のノード)
+class ScoreIndex {
+    private int[] left = new int[1024];
+    private int[] right = new int[1024];
+    private int[] size = new int[1024];
+    private int[] priority = new int[1024];
+    private ScoreEntry[] entries = new ScoreEntry[1024];
+    private int root = 0;
+    private int count = 0;
+    private final GameRandom random = new GameRandom(0x5C0DE);
+
+    public synchronized void insertAll(List<ScoreEntry> list) {
+        for (ScoreEntry entry : list) {
+            insert(entry);
+        }
+    }
+
+    private void insert(ScoreEntry entry) {
+        int node = ++count;
+        if (node == entries.length) {
+            int capacity = entries.length * 2;
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            size = Arrays.copyOf(size, capacity);
+            priority = Arrays.copyOf(priority, capacity);
+            entries = Arrays.copyOf(entries, capacity);
+        }
+        left[node] = 0;
+        right[node] = 0;
+        size[node] = 1;
+        priority[node] = (int) random.nextLong();
+        entries[node] = entry;
+        root = insert(root, node);
+    }
+
+    private int insert(int tree, int node) {
+        if (tree == 0) {
+            return node;
+        }
+        if (before(node, tree)) {
+            left[tree] = insert(left[tree], node);
+            if (priority[left[tree]] > priority[tree]) {
+                tree = rotateRight(tree);
+            }
+        } else {
+            right[tree] = insert(right[tree], node);
+            if (priority[right[tree]] > priority[tree]) {
+                tree = rotateLeft(tree);
+            }
+        }
+        size[tree] = size[left[tree]] + size[right[tree]] + 1;
+        return tree;
+    }
+
+    // aがbより上の順位か (同点は日時の古い順、それも同じなら登録順)
+    private boolean before(int a, int b) {
+        ScoreEntry x = entries[a];
+        ScoreEntry y = entries[b];
+        if (x.getScore() != y.getScore()) {
+            return x.getScore() > y.getScore();
+        }
+        if (x.getTimestamp() != y.getTimestamp()) {
+            return x.getTimestamp() < y.getTimestamp();
+        }
+        return a < b;
+    }
+
+    private int rotateRight(int tree) {
+        int top = left[tree];
+        left[tree] = right[top];
+        right[top] = tree;
+        size[tree] = size[left[tree]] + size[right[tree]] + 1;
+        size[top] = size[left[top]] + size[right[top]] + 1;
+        return top;
+    }
+
+    private int rotateLeft(int tree) {
+        int top = right[tree];
+        right[tree] = left[top];
+        left[top] = tree;
+        size[tree] = size[left[tree]] + size[right[tree]] + 1;
+        size[top] = size[left[top]] + size[right[top]] + 1;
+        return top;
+    }
+
+    // k位 (0から) のノード
+    private int select(int k) {
+        int tree = root;
+        while (tree != 0) {
+            int leftSize = size[left[tree]];
+            if (k < leftSize) {
+                tree = left[tree];
+            } else if (k == leftSize) {
+                return tree;
+            } else {
+                k -= leftSize + 1;
+                tree = right[tree];
+            }
+        }
+        return 0;
+    }
+
+    // offset位から最大page.length件を取得し、取得した件数を返す
+    public synchronized int getTop(int offset, ScoreEntry[] page) {
+        int n = 0;
+        while (n < page.length && offset + n < count) {
+            page[n] = entries[select(offset + n)];
+            n++;
+        }
+        return n;
+    }
+
+    // scoreより高いスコアの件数
+    public synchronized int countGreater(int score) {
+        int result = 0;
+        int tree = root;
+        while (tree != 0) {
+            if (entries[tree].getScore() > score) {
+                result += size[left[tree]] + 1;
+                tree = right[tree];
+            } else {
+                tree = left[tree];
+            }
+        }
+        return result;
+    }
+
+    // 1位のスコア (空なら0)
+    public synchronized int getTopScore() {
+        return count == 0 ? 0 : entries[select(0)].getScore();
+    }
+
+    public synchronized int size() {
+        return count;
     }
 
-    // getHighScores
-    public List<Integer> getHighScores() {
-        return highScores;
+    public synchronized void clear() {
+        Arrays.fill(entries, 1, count + 1, null);
+        root = 0;
+        count = 0;
     }
 }
 
+// 画像の共有キャッシュ
+// PNGの読み込みと縮小はプロセス全体で1回だけ行い、表示環境と互換性のある画像として保持する
+// (互換画像はJava2Dのアクセラレーションされた転送の対象になる)
 class ImageLoader {
-    private Map<ImageKey, ImageIcon> images = new HashMap<>();
+    private static final ImageKey[] KEYS = ImageKey.values();
+    private final BufferedImage[] images = new BufferedImage[KEYS.length];
+    private final int[] widths = new int[KEYS.length];
+    private final int[] heights = new int[KEYS.length];
+
+    // 初めて使われた時に1回だけ読み込む
+    private static class Holder {
+        static final ImageLoader INSTANCE = new ImageLoader();
+    }
+
+    public static ImageLoader getInstance() {
+        return Holder.INSTANCE;
+    }
 
-    public ImageLoader() {
+    private ImageLoader() {
         // 画像の読み込み
         loadImages();
     }
 
     private void loadImages() {
-        images.put(ImageKey.PLAYER, new ImageIcon("./images/player.png"));
-        images.put(ImageKey.PLAYER_BANG, new ImageIcon("./images/player_bang.png"));
-        images.put(ImageKey.PLAYER_MISSILE, new ImageIcon("./images/player_missile.png"));
-        images.put(ImageKey.ENEMY1, new ImageIcon("./images/enemy1.png"));
-        images.put(ImageKey.ENEMY2, new ImageIcon("./images/enemy2.png"));
-        images.put(ImageKey.ENEMY3, new ImageIcon("./images/enemy3.png"));
-        images.put(ImageKey.ENEMY4, new ImageIcon("./images/enemy4.png"));
-        images.put(ImageKey.ENEMY5, new ImageIcon("./images/enemy5.png"));
-        images.put(ImageKey.ENEMY6, new ImageIcon("./images/enemy6.png"));
-        images.put(ImageKey.ENEMY7, new ImageIcon("./images/enemy7.png"));
-        images.put(ImageKey.ENEMY8, new ImageIcon("./images/enemy8.png"));
-        images.put(ImageKey.ENEMY9, new ImageIcon("./images/enemy9.png"));
-        images.put(ImageKey.ENEMY10, new ImageIcon("./images/enemy10.png"));
-        images.put(ImageKey.ENEMY11, new ImageIcon("./images/enemy11.png"));
-        images.put(ImageKey.ENEMY_BANG, new ImageIcon("./images/enemy_bang.png"));
-        images.put(ImageKey.ENEMY_MISSILE, new ImageIcon("./images/enemy_missile.png"));
-        images.put(ImageKey.ITEM1, new ImageIcon("./images/item1.png"));
-        images.put(ImageKey.ITEM2, new ImageIcon("./images/item2.png"));
-        images.put(ImageKey.ITEM3, new ImageIcon("./images/item3.png"));
-        images.put(ImageKey.ITEM4, new ImageIcon("./images/item4.png"));
-        images.put(ImageKey.BOSS1, new ImageIcon("./images/boss1.png"));
-        images.put(ImageKey.BOSS2, new ImageIcon("./images/boss2.png"));
-        images.put(ImageKey.BOSS3, new ImageIcon("./images/boss3.png"));
-        images.put(ImageKey.BOSS4, new ImageIcon("./images/boss4.png"));
-        images.put(ImageKey.BOSS5, new ImageIcon("./images/boss5.png"));
-        images.put(ImageKey.BOSS6, new ImageIcon("./images/boss6.png"));
-        images.put(ImageKey.BOSS_BANG, new ImageIcon("./images/boss_bang.png"));
-
-        // imagesの画像を全て1/2に縮小
-        for (ImageKey key : images.keySet()) {
-            // ImageKey.ENEMY_MISSILEとImageKey.PLAYER_MISSILEは縮小しない
-            if (key == ImageKey.ENEMY_MISSILE || key == ImageKey.PLAYER_MISSILE) {
+        GraphicsConfiguration gc = null;
+        if (!GraphicsEnvironment.isHeadless()) {
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        }
+        for (ImageKey key : KEYS) {
+            // ImageKey.PLAYERなら./images/player.png
+            File file = new File("./images/" + key.name().toLowerCase(Locale.ROOT) + ".png");
+            BufferedImage source = null;
+            try {
+                source = ImageIO.read(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (source == null) {
+                // 読み込めなかった画像は1x1の透明な画像にする
+                images[key.ordinal()] = createImage(gc, 1, 1);
+                widths[key.ordinal()] = 1;
+                heights[key.ordinal()] = 1;
                 continue;
             }
-            ImageIcon icon = images.get(key);
-            images.put(key, new ImageIcon(icon.getImage().getScaledInstance(icon.getIconWidth() / 2, icon.getIconHeight() / 2, Image.SCALE_SMOOTH)));
+
+            // imagesの画像を全て1/2に縮小
+            // ImageKey.ENEMY_MISSILEとImageKey.PLAYER_MISSILEは縮小しない
+            Image scaled = source;
+            int width = source.getWidth();
+            int height = source.getHeight();
+            if (key != ImageKey.ENEMY_MISSILE && key != ImageKey.PLAYER_MISSILE) {
+                width /= 2;
+                height /= 2;
+                // ImageIconを通して縮小が終わるまで待つ
+                scaled = new ImageIcon(source.getScaledInstance(width, height, Image.SCALE_SMOOTH)).getImage();
+            }
+
+            BufferedImage image = createImage(gc, width, height);
+            Graphics2D g = image.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(scaled, 0, 0, null);
+            g.dispose();
+
+            images[key.ordinal()] = image;
+            widths[key.ordinal()] = width;
+            heights[key.ordinal()] = height;
+        }
+    }
+
+    // 表示環境と互換性のある透過画像を作る
+    private static BufferedImage createImage(GraphicsConfiguration gc, int width, int height) {
+        if (gc == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         }
+        return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+
+    public Image getImage(ImageKey key) {
+        return images[key.ordinal()];
     }
 
-    public ImageIcon getImage(ImageKey key) {
-        return images.get(key);
+    // ImageKeyのordinalで取得する
+    public Image getImage(int key) {
+        return images[key];
     }
 
     // 画像の横幅・縦幅を取得するメソッドなど
     public int getImageWidth(ImageKey key) {
-        return images.get(key).getIconWidth();
+        return widths[key.ordinal()];
     }
 
     public int getImageHeight(ImageKey key) {
-        return images.get(key).getIconHeight();
+        return heights[key.ordinal()];
+    }
+
+    // ImageKeyのordinalで取得する
+    public int getImageWidth(int key) {
+        return widths[key];
+    }
+
+    public int getImageHeight(int key) {
+        return heights[key];
     }
 
 }
 
+// キー入力 (Gameに1つだけ登録する)
+// EDTで受け取ったキーイベントを時刻付きでリングバッファに入れ、ゲームループがtickの境目で
+// そのtickの終わりの時刻までのイベントを取り出して、押している・押された・離されたキーにまとめる
+// (tickの間に押して離したキーも、押されたとして1tick分は入力に残る)
+// リングバッファは書き込みがEDTだけ、読み出しがゲームループだけなので、ロックを使わずに受け渡す
 class InputHandler extends KeyAdapter {
-    private boolean leftPressed = false;
-    private boolean rightPressed = false;
-    private boolean firePressed = false;
+    // ボタン (ビットはGameWorld.INPUT_*と同じ並び)
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int FIRE = 2;
+    public static final int PROFILER = 3;
+    // GameWorldに渡すボタンのビット
+    private static final int GAME_BITS = GameWorld.INPUT_LEFT | GameWorld.INPUT_RIGHT | GameWorld.INPUT_FIRE;
+
+    // リングバッファの大きさ (2のべき乗)
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private final long[] times = new long[CAPACITY];
+    // ボタンの番号 * 2 + 押したら1
+    private final int[] events = new int[CAPACITY];
+    // 次に書き込む位置 (EDTだけが書く) と次に読み出す位置 (ゲームループだけが書く)
+    private volatile long head = 0;
+    private volatile long tail = 0;
+    // バッファがいっぱいで捨てたイベントの数
+    private volatile long droppedEvents = 0;
+    // EDTから見た今押しているキー (イベントを捨てたときに押しっぱなしのままにならないよう合わせるのに使う)
+    private volatile int keyState = 0;
+    // keyStateに合わせた時点のdroppedEvents
+    private long reconciledDrops = 0;
+
+    // このtickの入力 (ゲームループのスレッドだけが使う)
+    private int held = 0;
+    private int pressed = 0;
+    private int released = 0;
 
     @Override
     public void keyPressed(KeyEvent e) {
-        switch (e.getKeyCode()) {
-            case KeyEvent.VK_LEFT:
-                leftPressed = true;
-                break;
-            case KeyEvent.VK_RIGHT:
-                rightPressed = true;
-                break;
-            case KeyEvent.VK_SPACE:
-                firePressed = true;
-                break;
-        }
+        push(toButton(e.getKeyCode()), true);
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
-        switch (e.getKeyCode()) {
+        push(toButton(e.getKeyCode()), false);
+    }
+
+    private static int toButton(int keyCode) {
+        switch (keyCode) {
             case KeyEvent.VK_LEFT:
-                leftPressed = false;
-                break;
+                return LEFT;
             case KeyEvent.VK_RIGHT:
-                rightPressed = false;
-                break;
+                return RIGHT;
             case KeyEvent.VK_SPACE:
-                firePressed = false;
+                return FIRE;
+            case KeyEvent.VK_F3:
+                return PROFILER;
+            default:
+                return -1;
+        }
+    }
+
+    private void push(int button, boolean down) {
+        if (button < 0) {
+            return;
+        }
+        if (down) {
+            keyState |= 1 << button;
+        } else {
+            keyState &= ~(1 << button);
+        }
+        long h = head;
+        if (h - tail >= CAPACITY) {
+            droppedEvents++;
+            return;
+        }
+        int slot = (int) (h & MASK);
+        times[slot] = System.nanoTime();
+        events[slot] = button * 2 + (down ? 1 : 0);
+        // headの書き込みでイベントの内容がゲームループから見えるようになる
+        head = h + 1;
+    }
+
+    // tickの始めに呼ぶ (tickEndNanos以前のイベントをこのtickの入力にする)
+    public void beginTick(long tickEndNanos) {
+        pressed = 0;
+        released = 0;
+        long t = tail;
+        long h = head;
+        while (t < h) {
+            int slot = (int) (t & MASK);
+            if (times[slot] - tickEndNanos > 0) {
+                // 次のtickの分
                 break;
+            }
+            int bit = 1 << (events[slot] >> 1);
+            if ((events[slot] & 1) != 0) {
+                if ((held & bit) == 0) {
+                    pressed |= bit;
+                }
+                held |= bit;
+            } else {
+                if ((held & bit) != 0) {
+                    released |= bit;
+                }
+                held &= ~bit;
+            }
+            t++;
         }
+        tail = t;
+        // 捨てたイベントがあれば、追いついたところでEDTのキーの状態に合わせる
+        long dropped = droppedEvents;
+        if (t == h && dropped != reconciledDrops) {
+            int state = keyState;
+            pressed |= state & ~held;
+            released |= held & ~state;
+            held = state;
+            reconciledDrops = dropped;
+        }
+    }
+
+    // 押しているか
+    public boolean isHeld(int button) {
+        return (held & (1 << button)) != 0;
     }
 
-    public boolean isLeftPressed() {
-        return leftPressed;
+    // このtickで押されたか
+    public boolean wasPressed(int button) {
+        return (pressed & (1 << button)) != 0;
     }
 
-    public boolean isRightPressed() {
-        return rightPressed;
+    // このtickで離されたか
+    public boolean wasReleased(int button) {
+        return (released & (1 << button)) != 0;
     }
 
-    public boolean isFirePressed() {
-        return firePressed;
+    // GameWorldに渡す入力のビット (このtickで押されたキーも含める)
+    public int getInputBits() {
+        return (held | pressed) & GAME_BITS;
     }
 
-    // Getterメソッドなど
+    // getDroppedEvents
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
 }
\ No newline at end of file
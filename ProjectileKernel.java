@@ -0,0 +1,54 @@
+/**
+ * 弾の移動と画面外の判定 (y += vy、yがminY～maxYの外に出たらflagsからaliveBitを落とす)。
+ * jdk.incubator.vector が使える時は VectorProjectileKernel で何個かずつまとめて処理する
+ * (java --add-modules jdk.incubator.vector Game、-Dakari.scalarProjectiles=true で使わない)。
+ * VectorProjectileKernel からも使うので Game.java とは別のファイルに置き、Game.java のクラスには依存しない。
+ */
+abstract class ProjectileKernel {
+    // 1つずつ処理する
+    static final ProjectileKernel SCALAR = new ProjectileKernel() {
+        @Override
+        public void move(int[] y, int[] vy, int[] flags, int aliveBit, int from, int to, int minY, int maxY) {
+            for (int i = from; i < to; i++) {
+                int next = y[i] + vy[i];
+                y[i] = next;
+                if (next < minY || next > maxY) {
+                    flags[i] &= ~aliveBit;
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+    };
+
+    private static class Holder {
+        static final ProjectileKernel PREFERRED = select();
+    }
+
+    // 使えればベクトル版、なければ1つずつ処理する版
+    public static ProjectileKernel getPreferred() {
+        return Holder.PREFERRED;
+    }
+
+    private static ProjectileKernel select() {
+        ProjectileKernel vector = loadVector();
+        return vector != null ? vector : SCALAR;
+    }
+
+    // VectorProjectileKernelを読み込む (javac Game.java だけでコンパイルした時や、モジュールがない時はnull)
+    static ProjectileKernel loadVector() {
+        try {
+            return (ProjectileKernel) Class.forName("VectorProjectileKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // from～to-1番目を動かす
+    public abstract void move(int[] y, int[] vy, int[] flags, int aliveBit, int from, int to, int minY, int maxY);
+
+    public abstract String getName();
+}
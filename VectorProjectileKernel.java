@@ -0,0 +1,43 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * ProjectileKernel の jdk.incubator.vector 版。
+ * Game.java からはクラス名で読み込むので、このファイルがなくてもゲームはコンパイル・実行できる。
+ *
+ * javac --add-modules jdk.incubator.vector Game.java ProjectileKernel.java VectorProjectileKernel.java
+ * java --add-modules jdk.incubator.vector Game
+ */
+class VectorProjectileKernel extends ProjectileKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void move(int[] y, int[] vy, int[] flags, int aliveBit, int from, int to, int minY, int maxY) {
+        int i = from;
+        int upper = from + SPECIES.loopBound(to - from);
+        for (; i < upper; i += SPECIES.length()) {
+            IntVector next = IntVector.fromArray(SPECIES, y, i).add(IntVector.fromArray(SPECIES, vy, i));
+            next.intoArray(y, i);
+            // 範囲外のレーンだけaliveBitを落とす
+            VectorMask<Integer> outside = next.compare(VectorOperators.LT, minY).or(next.compare(VectorOperators.GT, maxY));
+            if (outside.anyTrue()) {
+                IntVector.fromArray(SPECIES, flags, i).lanewise(VectorOperators.AND, ~aliveBit, outside).intoArray(flags, i);
+            }
+        }
+        // 端数は1つずつ
+        for (; i < to; i++) {
+            int next = y[i] + vy[i];
+            y[i] = next;
+            if (next < minY || next > maxY) {
+                flags[i] &= ~aliveBit;
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.length() + " x int)";
+    }
+}
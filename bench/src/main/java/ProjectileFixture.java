@@ -0,0 +1,59 @@
+import java.util.Arrays;
+
+import akari.bench.ProjectileScenario;
+
+/**
+ * 敵機のミサイルと同じ並びの配列を、ProjectileKernel で動かす。
+ * 256tickごとに位置を最初に戻して、画面内と画面外の弾の割合を保つ。
+ */
+public class ProjectileFixture implements ProjectileScenario {
+    private static final int RESET_INTERVAL = 256;
+
+    private final ProjectileKernel kernel;
+    private final int count;
+    private final int[] startY;
+    private final int[] y;
+    private final int[] vy;
+    private final int[] flags;
+    private int ticks = 0;
+
+    public static ProjectileScenario create(String kernel, int count) {
+        return new ProjectileFixture(kernel, count);
+    }
+
+    ProjectileFixture(String kernelName, int count) {
+        if (kernelName.equals("vector")) {
+            kernel = ProjectileKernel.loadVector();
+            if (kernel == null) {
+                throw new IllegalStateException("jdk.incubator.vector is not available (--add-modules jdk.incubator.vector)");
+            }
+        } else {
+            kernel = ProjectileKernel.SCALAR;
+        }
+        this.count = count;
+        GameRandom random = new GameRandom(1);
+        startY = new int[count];
+        vy = new int[count];
+        for (int i = 0; i < count; i++) {
+            startY[i] = random.nextInt(Constants.SCREEN_HEIGHT);
+            vy[i] = 1 + random.nextInt(5);
+        }
+        y = startY.clone();
+        flags = new int[count];
+        Arrays.fill(flags, EntityStore.ALIVE);
+    }
+
+    @Override
+    public void tick() {
+        kernel.move(y, vy, flags, EntityStore.ALIVE, 0, count, Integer.MIN_VALUE, Constants.SCREEN_HEIGHT);
+        if (++ticks % RESET_INTERVAL == 0) {
+            System.arraycopy(startY, 0, y, 0, count);
+            Arrays.fill(flags, EntityStore.ALIVE);
+        }
+    }
+
+    @Override
+    public String kernelName() {
+        return kernel.getName();
+    }
+}
@@ -0,0 +1,99 @@
+import java.awt.Graphics2D;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+
+import akari.bench.StageScenario;
+
+/**
+ * 敵機と敵機のミサイルを指定数に保ったステージ。
+ * ゲームのクラスと同じ無名パッケージに置き、パッケージプライベートのメンバーを直接使う。
+ * 敵機のミサイルは毎tick補充するので、敵機自身の発射確率は0にしている (乱数を引く処理は残る)。
+ * 自機はスペースを押したまま動かず、補充するミサイルは自機の列を避けて置く。
+ */
+public class StageFixture implements StageScenario {
+    // 下に降りていった敵機を上に戻す間隔 (tick)
+    private static final int WRAP_INTERVAL = 256;
+
+    private final int enemyCount;
+    private final int bulletCount;
+    private final GameRandom random = new GameRandom(1);
+    private final GameWorld world;
+    private final StageScreen screen;
+    private final Graphics2D graphics;
+    private final int enemyWidth;
+    private final int enemyHeight;
+
+    public static StageScenario create(int enemies, int bullets) {
+        return new StageFixture(enemies, bullets);
+    }
+
+    StageFixture(int enemyCount, int bulletCount) {
+        if (enemyCount > Constants.ENEMY_CAPACITY || bulletCount > Constants.ENEMY_MISSILE_CAPACITY) {
+            throw new IllegalArgumentException("raise -Dakari.enemyCapacity / -Dakari.enemyMissileCapacity");
+        }
+        this.enemyCount = enemyCount;
+        this.bulletCount = bulletCount;
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        enemyWidth = imageLoader.getImageWidth(ImageKey.ENEMY1);
+        enemyHeight = imageLoader.getImageHeight(ImageKey.ENEMY1);
+
+        world = new GameWorld(1, 1, GameParams.DEFAULT.withFireRateScale(0));
+        world.enemies.clear();
+        screen = new StageScreen(world, ScoreManager.getInstance());
+        screen.inputHandler.keyPressed(new KeyEvent(screen, KeyEvent.KEY_PRESSED, 0, 0, KeyEvent.VK_SPACE, ' '));
+        screen.inputHandler.beginTick(Long.MAX_VALUE);
+        // 「Stage 1」の表示を飛ばす (表示中は敵機がいなくてもボス機は出ない)
+        while (world.getDisplayStage() > 0) {
+            world.tick(0);
+        }
+        refill();
+
+        BufferedImage image = new BufferedImage(Constants.SCREEN_WIDTH, Constants.SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+    }
+
+    @Override
+    public void tick() {
+        screen.update();
+        refill();
+        if (world.getTickCount() % WRAP_INTERVAL == 0) {
+            EntityStore enemies = world.enemies;
+            for (int i = 0; i < enemies.size(); i++) {
+                if (enemies.y[i] > Constants.SCREEN_HEIGHT / 2) {
+                    enemies.y[i] -= Constants.SCREEN_HEIGHT / 2;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void paint() {
+        screen.render(graphics, 0.5f);
+    }
+
+    @Override
+    public int entityCount() {
+        return world.enemies.size() + world.missiles.size() + world.enemyMissiles.size() + world.items.size();
+    }
+
+    // 倒された敵機と画面外に出たミサイルの分を補充する
+    private void refill() {
+        EntityStore enemies = world.enemies;
+        while (enemies.size() < enemyCount) {
+            int x = random.nextInt(Constants.SCREEN_WIDTH - enemyWidth);
+            int y = random.nextInt(Constants.SCREEN_HEIGHT / 2);
+            world.addEnemy(x, y, ImageKey.ENEMY1);
+        }
+        Player player = world.getPlayer();
+        int left = player.getX() - 8;
+        int span = Constants.SCREEN_WIDTH - player.getWidth() - 16;
+        EntityStore enemyMissiles = world.enemyMissiles;
+        while (enemyMissiles.size() < bulletCount) {
+            int x = random.nextInt(span);
+            if (x >= left) {
+                x += player.getWidth() + 16;
+            }
+            world.addEnemyMissile(x, random.nextInt(Constants.SCREEN_HEIGHT) - enemyHeight);
+        }
+    }
+}
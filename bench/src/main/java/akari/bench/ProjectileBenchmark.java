@@ -0,0 +1,48 @@
+package akari.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 弾の移動と画面外の判定 (ProjectileKernel) の1つずつ処理する版とベクトル版の比較。
+ * スコアは1秒あたりの tick 数で、弾の数をかけると1秒あたりに動かした弾の数になる。
+ *
+ * java -jar bench/target/benchmarks.jar ProjectileBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class ProjectileBenchmark {
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    @Param({"1000", "10000", "100000"})
+    public int bullets;
+
+    private ProjectileScenario scenario;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scenario = ProjectileScenario.create(kernel, bullets);
+    }
+
+    @Benchmark
+    public void tick() {
+        scenario.tick();
+    }
+}
@@ -0,0 +1,24 @@
+package akari.bench;
+
+/**
+ * ベンチマーク用の弾の配列。
+ * StageScenario と同じく、無名パッケージの ProjectileFixture が実装する。
+ */
+public interface ProjectileScenario {
+    // 全部の弾を1tick分動かす
+    void tick();
+
+    // 使っている ProjectileKernel の名前
+    String kernelName();
+
+    // 無名パッケージの ProjectileFixture を作る (kernel は scalar か vector)
+    static ProjectileScenario create(String kernel, int count) {
+        try {
+            return (ProjectileScenario) Class.forName("ProjectileFixture")
+                    .getMethod("create", String.class, int.class)
+                    .invoke(null, kernel, count);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ProjectileFixture is not on the classpath", e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package akari.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StageScreen.update (移動・発射・当たり判定・削除) と StageScreen.paint のベンチマーク。
+ * スコアは1秒あたりのtick数 (描画回数)。entities は1秒あたりに処理したエンティティ数で、
+ * 1e9 / entities が1エンティティあたりのナノ秒になる。割り当て量は -prof gc で見る。
+ *
+ * java -jar bench/target/benchmarks.jar -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-modules", "jdk.incubator.vector",
+        "-Djava.awt.headless=true",
+        "-Dakari.enemyCapacity=16384",
+        "-Dakari.enemyMissileCapacity=65536"})
+@State(Scope.Thread)
+public class StageBenchmark {
+    @Param({"12", "100", "1000", "10000"})
+    public int enemies;
+
+    @Param({"0", "1000", "50000"})
+    public int bullets;
+
+    private StageScenario scenario;
+
+    // 1秒あたりに処理したエンティティ数
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class EntityCounter {
+        public long entities;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            entities = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scenario = StageScenario.create(enemies, bullets);
+    }
+
+    @Benchmark
+    public void tick(EntityCounter counter) {
+        scenario.tick();
+        counter.entities += scenario.entityCount();
+    }
+
+    @Benchmark
+    public void paint(EntityCounter counter) {
+        scenario.paint();
+        counter.entities += scenario.entityCount();
+    }
+}
@@ -0,0 +1,28 @@
+package akari.bench;
+
+/**
+ * ベンチマーク用のステージ。
+ * ゲームのクラスは無名パッケージのパッケージプライベートなので、
+ * 無名パッケージの StageFixture が実装し、ベンチマークからはこのインターフェース越しに使う。
+ */
+public interface StageScenario {
+    // StageScreen.update を1回 (=1tick) 実行する
+    void tick();
+
+    // StageScreen.paint をオフスクリーンの BufferedImage に1回実行する
+    void paint();
+
+    // 現在の敵機・ミサイル・敵機のミサイル・アイテムの合計数
+    int entityCount();
+
+    // 無名パッケージの StageFixture を作る
+    static StageScenario create(int enemies, int bullets) {
+        try {
+            return (StageScenario) Class.forName("StageFixture")
+                    .getMethod("create", int.class, int.class)
+                    .invoke(null, enemies, bullets);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("StageFixture is not on the classpath", e);
+        }
+    }
+}